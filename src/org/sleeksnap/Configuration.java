@@ -70,6 +70,19 @@ public class Configuration {
 		return config.getBoolean(key);
 	}
 
+	/**
+	 * Get a boolean
+	 * 
+	 * @param key
+	 *            The key
+	 * @param def
+	 *            The value to use if the key is not set
+	 * @return The result
+	 */
+	public boolean getBoolean(String key, boolean def) {
+		return config.getBoolean(key, def);
+	}
+
 	/**
 	 * Get an integer
 	 * 
@@ -42,6 +42,26 @@ public class Constants {
 
 		public static final int DEFAULT_MAX_RETRIES = 3;
 		
+		public static final int DEFAULT_HEDGE_DELAY = 5000;
+		
+		public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 4;
+		
+		public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+		
+		public static final int DEFAULT_READ_TIMEOUT = 60000;
+		
+		public static final int DEFAULT_UPLOAD_DEADLINE = 0;
+		
+		public static final int DEFAULT_UPLOAD_STALL_TIMEOUT = 120000;
+		
+		public static final int DEFAULT_UPLOAD_RATE_LIMIT = 0;
+		
+		public static final int DEFAULT_THROTTLE_THRESHOLD = 1024 * 1024;
+		
+		public static final int DEFAULT_RATE_LIMIT_MAX_DELAY = 60000;
+		
+		public static final int DEFAULT_ARCHIVE_QUEUE_LIMIT = 64 * 1024 * 1024;
+		
 		public static final String DEFAULT_LANGUAGE = "english";
 	}
 
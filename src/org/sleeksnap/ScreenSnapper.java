@@ -30,7 +30,6 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
@@ -39,9 +38,12 @@ import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -54,6 +56,7 @@ import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.UIManager;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -64,13 +67,23 @@ import org.sleeksnap.filter.FilterException;
 import org.sleeksnap.filter.PNGCompressionFilter;
 import org.sleeksnap.filter.UploadFilter;
 import org.sleeksnap.filter.WatermarkFilter;
+import org.sleeksnap.gui.ActiveUploadsMenu;
 import org.sleeksnap.gui.OptionPanel;
 import org.sleeksnap.gui.SelectionWindow;
+import org.sleeksnap.http.ConnectionWarmer;
+import org.sleeksnap.http.HttpClient;
+import org.sleeksnap.impl.ArchiveWriter;
 import org.sleeksnap.impl.History;
 import org.sleeksnap.impl.HistoryEntry;
 import org.sleeksnap.impl.HotkeyManager;
 import org.sleeksnap.impl.Language;
+import org.sleeksnap.impl.LocalArchive;
 import org.sleeksnap.impl.LoggingManager;
+import org.sleeksnap.impl.ThumbnailCache;
+import org.sleeksnap.impl.UploadScheduler;
+import org.sleeksnap.impl.UploadScheduler.BatchListener;
+import org.sleeksnap.impl.UploadScheduler.UploadListener;
+import org.sleeksnap.impl.UploadTask;
 import org.sleeksnap.updater.Updater;
 import org.sleeksnap.updater.Updater.VerificationMode;
 import org.sleeksnap.updater.UpdaterMode;
@@ -80,10 +93,13 @@ import org.sleeksnap.upload.ImageUpload;
 import org.sleeksnap.upload.TextUpload;
 import org.sleeksnap.upload.URLUpload;
 import org.sleeksnap.upload.Upload;
+import org.sleeksnap.upload.UploadProgress;
+import org.sleeksnap.uploaders.UploadCancelledException;
 import org.sleeksnap.uploaders.Uploader;
 import org.sleeksnap.uploaders.UploaderConfigurationException;
 import org.sleeksnap.uploaders.UploaderLoader;
 import org.sleeksnap.uploaders.files.FilebinUploader;
+import org.sleeksnap.uploaders.files.TusUploader;
 import org.sleeksnap.uploaders.files.UppitUploader;
 import org.sleeksnap.uploaders.generic.FTPUploader;
 import org.sleeksnap.uploaders.generic.GenericUploader;
@@ -108,14 +124,15 @@ import org.sleeksnap.uploaders.url.IsgdShortener;
 import org.sleeksnap.uploaders.url.PostShortener;
 import org.sleeksnap.uploaders.url.TUrlShortener;
 import org.sleeksnap.uploaders.url.TinyURLShortener;
+import org.sleeksnap.util.FTPSessionPool;
 import org.sleeksnap.util.ProgramOptions;
 import org.sleeksnap.util.ScreenshotUtil;
 import org.sleeksnap.util.Util;
 import org.sleeksnap.util.Utils.ClipboardUtil;
 import org.sleeksnap.util.Utils.ClipboardUtil.ClipboardException;
-import org.sleeksnap.util.Utils.DateUtil;
 import org.sleeksnap.util.Utils.DisplayUtil;
 import org.sleeksnap.util.Utils.FileUtils;
+import org.sleeksnap.util.Utils.FormatUtil;
 import org.sleeksnap.util.active.WindowUtilProvider;
 import org.sleeksnap.util.logging.LogPanelHandler;
 
@@ -194,6 +211,12 @@ public class ScreenSnapper {
 	 */
 	private static final Logger logger = Logger.getLogger(ScreenSnapper.class.getName());
 
+	/**
+	 * The most time to wait for local copies to be written when exiting, in
+	 * milliseconds
+	 */
+	private static final long ARCHIVE_SHUTDOWN_TIMEOUT = 10000;
+
 	public static void main(String[] args) {
 		// Initialize program
 		ScreenSnapper instance = new ScreenSnapper();
@@ -210,6 +233,16 @@ public class ScreenSnapper {
 	 */
 	private HashMap<Class<? extends Upload>, Uploader<?>> uploaderAssociations = new HashMap<Class<? extends Upload>, Uploader<?>>();
 
+	/**
+	 * A map which contains the backup uploaders used to hedge slow uploads
+	 */
+	private HashMap<Class<? extends Upload>, Uploader<?>> backupAssociations = new HashMap<Class<? extends Upload>, Uploader<?>>();
+
+	/**
+	 * A map which contains the uploaders each upload is mirrored to
+	 */
+	private HashMap<Class<? extends Upload>, List<Uploader<?>>> mirrorAssociations = new HashMap<Class<? extends Upload>, List<Uploader<?>>>();
+
 	/**
 	 * A map containing upload filters
 	 */
@@ -230,11 +263,33 @@ public class ScreenSnapper {
 	 */
 	private TrayIcon icon;
 
+	/**
+	 * The progress of the running batch upload shown in the tray tooltip, or
+	 * null
+	 */
+	private volatile String batchStatus;
+
 	/**
 	 * The configuration instance
 	 */
 	private Configuration configuration = new Configuration();
 
+	/**
+	 * The scheduler which runs the uploaders
+	 */
+	private UploadScheduler scheduler = new UploadScheduler(configuration);
+
+	/**
+	 * Opens connections to the uploaders ahead of uploads
+	 */
+	private ConnectionWarmer warmer = new ConnectionWarmer();
+
+	/**
+	 * Saves local copies of uploaded images in the background, created when
+	 * it is first needed
+	 */
+	private ArchiveWriter archiveWriter;
+
 	/**
 	 * The selection window instances
 	 */
@@ -344,7 +399,8 @@ public class ScreenSnapper {
 		}
 		// Load the history
 		logger.info("Loading history...");
-		File historyFile = new File(local, "history.json");
+		File historyFile = new File(local, "history.log");
+		File legacyHistoryFile = new File(local, "history.json");
 		history = new History(historyFile);
 		if (historyFile.exists()) {
 			logger.info("Using existing history file.");
@@ -353,6 +409,13 @@ public class ScreenSnapper {
 			} catch (Exception e) {
 				logger.log(Level.WARNING, "Failed to load history", e);
 			}
+		} else if (legacyHistoryFile.exists()) {
+			logger.info("Converting history file...");
+			try {
+				history.migrate(legacyHistoryFile);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to convert history", e);
+			}
 		} else {
 			logger.info("Using new history file.");
 		}
@@ -420,17 +483,13 @@ public class ScreenSnapper {
 			}
 			if (clipboard instanceof BufferedImage) {
 				upload(new ImageUpload((BufferedImage) clipboard));
-			} else if (clipboard instanceof File) {
-				File file = (File) clipboard;
-				String mime = FileUtils.getMimeType(file.getAbsolutePath());
-
-				// A better way to upload images, it'll check the mime type!
-				if (mime.startsWith("image")) {
-					upload(new ImageUpload(ImageIO.read(file)));
-				} else if (mime.startsWith("text") && configuration.getBoolean("plainTextUpload")) {
-					upload(new TextUpload(FileUtils.readFile(file)));
-				} else {
-					upload(new FileUpload(file));
+			} else if (clipboard instanceof List) {
+				@SuppressWarnings("unchecked")
+				List<File> files = FileUtils.listFiles((List<File>) clipboard, configuration.getBoolean("recurseDirectories", false));
+				if (files.size() == 1) {
+					uploadFile(files.get(0));
+				} else if (!files.isEmpty()) {
+					uploadFiles(files);
 				}
 			} else if (clipboard instanceof String) {
 				String string = clipboard.toString();
@@ -448,6 +507,28 @@ public class ScreenSnapper {
 		}
 	}
 
+	/**
+	 * Upload a single file, using the image or text uploaders if the file's
+	 * mime type matches
+	 * 
+	 * @param file
+	 *            The file to upload
+	 * @throws IOException
+	 *             If an error occurred while reading an image or text file
+	 */
+	private void uploadFile(File file) throws IOException {
+		String mime = FileUtils.getMimeType(file.getAbsolutePath());
+
+		// A better way to upload images, it'll check the mime type!
+		if (mime != null && mime.startsWith("image")) {
+			upload(new ImageUpload(ImageIO.read(file)));
+		} else if (mime != null && mime.startsWith("text") && configuration.getBoolean("plainTextUpload")) {
+			upload(new TextUpload(FileUtils.readFile(file)));
+		} else {
+			upload(new FileUpload(file));
+		}
+	}
+
 	/**
 	 * Perform a screenshot crop action
 	 */
@@ -456,6 +537,9 @@ public class ScreenSnapper {
 			return;
 		}
 		
+		// Connect while the user is selecting
+		prewarm(ImageUpload.class);
+		
 		window = new SelectionWindow(this, DisplayUtil.getRealScreenSize());
 		window.pack();
 		window.setAlwaysOnTop(true);
@@ -554,6 +638,10 @@ public class ScreenSnapper {
 	 *            The key id
 	 */
 	public void hotkey(final int ident) {
+		// Crop warms the connection itself, as it can also be opened directly
+		if (ident == ScreenshotAction.FULL || ident == ScreenshotAction.ACTIVE) {
+			prewarm(ImageUpload.class);
+		}
 		serv.execute(new Runnable() {
 			public void run() {
 				switch (ident) {
@@ -577,15 +665,50 @@ public class ScreenSnapper {
 		});
 	}
 
+	/**
+	 * Start opening a connection to the uploader of a type, if it declares
+	 * an endpoint
+	 * 
+	 * @param type
+	 *            The upload type
+	 */
+	private void prewarm(Class<? extends Upload> type) {
+		if (!configuration.getBoolean("prewarmConnections", true)) {
+			return;
+		}
+		Uploader<?> uploader = uploaderAssociations.get(type);
+		if (uploader != null) {
+			warmer.warm(uploader.getEndpoint());
+		}
+	}
+
 	/**
 	 * Upload a file to the file service by selecting in another window
 	 */
 	public void selectFile() {
 		JFileChooser chooser = new JFileChooser();
-		chooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+		chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+		chooser.setMultiSelectionEnabled(true);
 		int returnVal = chooser.showOpenDialog(null);
 		if (returnVal == JFileChooser.APPROVE_OPTION) {
-			File file = chooser.getSelectedFile();
+			File[] selected = chooser.getSelectedFiles();
+			if (selected.length == 0) {
+				selected = new File[] { chooser.getSelectedFile() };
+			}
+			List<File> files = FileUtils.listFiles(Arrays.asList(selected), configuration.getBoolean("recurseDirectories", false));
+			if (files.isEmpty()) {
+				return;
+			}
+			if (files.size() > 1) {
+				int confirm = JOptionPane.showConfirmDialog(null, Language.getString("batchUploadConfirm", files.size()), Language.getString("uploadConfirmTitle"), JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+				if (confirm == JOptionPane.YES_OPTION) {
+					uploadFiles(files);
+				} else {
+					JOptionPane.showMessageDialog(null, Language.getString("fileUploadCanceled"), Language.getString("fileUploadTitle"), JOptionPane.INFORMATION_MESSAGE);
+				}
+				return;
+			}
+			File file = files.get(0);
 			int confirm = JOptionPane.showConfirmDialog(null, Language.getString("uploadConfirm", file.getName()), Language.getString("uploadConfirmTitle"), JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
 			if (confirm == JOptionPane.YES_OPTION) {
 				JOptionPane.showMessageDialog(null, Language.getString("fileUploading"), Language.getString("fileUploadTitle"), JOptionPane.INFORMATION_MESSAGE);
@@ -617,6 +740,10 @@ public class ScreenSnapper {
 		
 		tray.addSeparator();
 		
+		tray.add(new ActiveUploadsMenu(scheduler));
+		
+		tray.addSeparator();
+		
 		MenuItem settings = new MenuItem(Language.getString("options"));
 		settings.addActionListener(new ActionListener() {
 			@Override
@@ -639,6 +766,17 @@ public class ScreenSnapper {
 		
 		icon = new TrayIcon(Toolkit.getDefaultToolkit().getImage(Resources.ICON), Application.NAME + " v" + Version.getVersionString());
 		icon.setPopupMenu(tray);
+		scheduler.addUploadListener(new UploadListener() {
+			@Override
+			public void uploadProgress(UploadTask task, UploadProgress progress) {
+				updateToolTip(null);
+			}
+
+			@Override
+			public void uploadFinished(UploadTask task, UploadProgress progress) {
+				updateToolTip(task);
+			}
+		});
 		icon.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
@@ -658,11 +796,52 @@ public class ScreenSnapper {
 		}
 	}
 
+	/**
+	 * Show the combined progress of the running uploads in the tray tooltip,
+	 * or restore the default tooltip if none are running
+	 * 
+	 * @param finished
+	 *            An upload which has just finished and should be left out, or
+	 *            null
+	 */
+	private void updateToolTip(UploadTask finished) {
+		long sent = 0, length = 0, rate = 0;
+		for (UploadTask task : scheduler.getActiveTasks()) {
+			if (task == finished) {
+				continue;
+			}
+			UploadProgress progress = task.getContext().getProgress();
+			sent += progress.getTransferred();
+			length += Math.max(progress.getLength(), progress.getTransferred());
+			rate += progress.getCurrentRate();
+		}
+		String status = batchStatus;
+		if (length > 0) {
+			String uploading = Language.getString("uploadProgressToolTip", FormatUtil.humanReadableByteCount(sent, true), FormatUtil.humanReadableByteCount(length, true), FormatUtil.humanReadableByteCount(rate, true));
+			status = status != null ? status + " - " + uploading : uploading;
+		}
+		icon.setToolTip(status != null ? status : Application.NAME + " v" + Version.getVersionString());
+	}
+
 	/**
 	 * Clean up and shut down
 	 */
 	private void shutdown() {
 		uploadService.shutdown();
+		scheduler.shutdown();
+		warmer.shutdown();
+		FTPSessionPool.getInstance().shutdown();
+		if (history != null) {
+			history.close();
+		}
+		synchronized (this) {
+			if (archiveWriter != null) {
+				// Let queued local copies finish writing
+				archiveWriter.shutdown(ARCHIVE_SHUTDOWN_TIMEOUT);
+			}
+		}
+		logger.info("HTTP connection statistics: " + HttpClient.getInstance().getStatistics());
+		logger.info("Upload statistics: " + scheduler.getMetrics());
 		System.exit(0);
 	}
 
@@ -698,6 +877,35 @@ public class ScreenSnapper {
 				}
 			}
 		}
+		if (configuration.contains("backupUploaders")) {
+			JSONObject backupConfig = configuration.getJSONObject("backupUploaders");
+
+			@SuppressWarnings("unchecked")
+			Iterator<Object> it$ = backupConfig.keys();
+			while (it$.hasNext()) {
+				String key = it$.next().toString();
+
+				@SuppressWarnings("unchecked")
+				Class<? extends Upload> clType = (Class<? extends Upload>) Class.forName(key);
+				setBackupUploader(clType, backupConfig.getString(key));
+			}
+		}
+		if (configuration.contains("mirrorUploaders")) {
+			JSONObject mirrorConfig = configuration.getJSONObject("mirrorUploaders");
+
+			@SuppressWarnings("unchecked")
+			Iterator<Object> it$ = mirrorConfig.keys();
+			while (it$.hasNext()) {
+				String key = it$.next().toString();
+
+				@SuppressWarnings("unchecked")
+				Class<? extends Upload> clType = (Class<? extends Upload>) Class.forName(key);
+				JSONArray names = mirrorConfig.getJSONArray(key);
+				for (int i = 0; i < names.length(); i++) {
+					addMirrorUploader(clType, names.getString(i));
+				}
+			}
+		}
 		if (configuration.contains("startOnStartup") && configuration.getBoolean("startOnStartup")) {
 			// Verify that the paths match, useful for upgrading since it won't
 			// open the old file.
@@ -831,6 +1039,7 @@ public class ScreenSnapper {
 		// File uploaders
 		registerUploaderClass(FilebinUploader.class);
 		registerUploaderClass(UppitUploader.class);
+		registerUploaderClass(TusUploader.class);
 
 		// Load custom uploaders
 		UploaderLoader loader = new UploaderLoader(this);
@@ -1062,6 +1271,42 @@ public class ScreenSnapper {
 		uploaderAssociations.put(getUploaderType(uploader), uploader);
 	}
 
+	/**
+	 * Set the backup uploader used to hedge slow uploads of a type
+	 * 
+	 * @param type
+	 *            The class type
+	 * @param name
+	 *            The uploader name
+	 */
+	public void setBackupUploader(Class<? extends Upload> type, String name) {
+		Map<String, Uploader<? extends Upload>> map = uploaders.get(type);
+		if (map == null || !map.containsKey(name)) {
+			throw new RuntimeException("Invalid backup uploader " + name + " for " + type.getName());
+		}
+		backupAssociations.put(type, map.get(name));
+	}
+
+	/**
+	 * Add an uploader which every upload of a type is mirrored to
+	 * 
+	 * @param type
+	 *            The class type
+	 * @param name
+	 *            The uploader name
+	 */
+	public void addMirrorUploader(Class<? extends Upload> type, String name) {
+		Map<String, Uploader<? extends Upload>> map = uploaders.get(type);
+		if (map == null || !map.containsKey(name)) {
+			throw new RuntimeException("Invalid mirror uploader " + name + " for " + type.getName());
+		}
+		List<Uploader<?>> list = mirrorAssociations.get(type);
+		if (list == null) {
+			mirrorAssociations.put(type, list = new LinkedList<Uploader<?>>());
+		}
+		list.add(map.get(name));
+	}
+
 	/**
 	 * Show a TrayIcon message for an exception
 	 * 
@@ -1105,14 +1350,113 @@ public class ScreenSnapper {
 	}
 
 	/**
-	 * Execute an upload
+	 * Upload several files at once
+	 * 
+	 * @param files
+	 *            The files to upload
+	 */
+	public void uploadFiles(final List<File> files) {
+		if (!uploaderAssociations.containsKey(FileUpload.class)) {
+			icon.displayMessage(Language.getString("noUploaderTitle"), Language.getString("noUploader", FileUpload.class.getName()), TrayIcon.MessageType.ERROR);
+			return;
+		}
+
+		uploadService.execute(new Runnable() {
+			public void run() {
+				icon.setImage(Resources.ICON_BUSY_IMAGE);
+				executeBatch(files);
+				icon.setImage(Resources.ICON_IMAGE);
+			}
+		});
+	}
+
+	/**
+	 * Execute a batch of file uploads, running them concurrently and copying
+	 * all of the resulting URLs
+	 * 
+	 * @param files
+	 *            The files to upload
+	 */
+	public void executeBatch(List<File> files) {
+		Uploader<?> uploader = uploaderAssociations.get(FileUpload.class);
+
+		List<Upload> uploads = new LinkedList<Upload>();
+		long size = 0;
+		for (File file : files) {
+			Upload upload = filter(new FileUpload(file));
+			if (upload == null) {
+				return;
+			}
+			uploads.add(upload);
+			size += file.length();
+		}
+		final long totalSize = size;
+
+		List<UploadTask> tasks;
+		try {
+			tasks = scheduler.executeBatch(uploader, uploads, configuration.getInteger("maxConcurrentUploads", Constants.Configuration.DEFAULT_MAX_CONCURRENT_UPLOADS), new BatchListener() {
+				private long completedSize = 0;
+
+				@Override
+				public void uploadCompleted(UploadTask task, Exception failure, int completed, int total) {
+					File file = ((FileUpload) task.getUpload()).getFile();
+					completedSize += file.length();
+					if (task.isCancelled()) {
+						logger.info("Batch upload of " + file + " was cancelled");
+					} else if (failure != null || task.getUrl() == null) {
+						logger.log(Level.WARNING, "Batch upload of " + file + " failed", failure);
+					}
+					batchStatus = Language.getString("batchUploadProgress", completed, total, FormatUtil.humanReadableByteCount(completedSize, true), FormatUtil.humanReadableByteCount(totalSize, true));
+					updateToolTip(task);
+				}
+			});
+		} catch (InterruptedException e) {
+			return;
+		} finally {
+			batchStatus = null;
+			updateToolTip(null);
+		}
+
+		StringBuilder urls = new StringBuilder();
+		int succeeded = 0, skipped = 0;
+		for (UploadTask task : tasks) {
+			String url = task.getUrl();
+			if (url == null) {
+				if (task.isCancelled()) {
+					skipped++;
+				}
+				continue;
+			}
+			try {
+				url = shorten(url.trim());
+				history.addEntry(new HistoryEntry(url, task.getUploader().getName()));
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unable to record batch upload " + url, e);
+			}
+			if (urls.length() > 0) {
+				urls.append('\n');
+			}
+			urls.append(url);
+			lastUrl = url;
+			succeeded++;
+		}
+
+		if (succeeded > 0) {
+			ClipboardUtil.setClipboard(urls.toString());
+		}
+		logger.info("Batch upload completed, " + succeeded + " of " + tasks.size() + " files uploaded, " + skipped + " cancelled");
+		icon.displayMessage(Language.getString("uploadComplete"), Language.getString("batchUploadComplete", succeeded, tasks.size()), succeeded + skipped == tasks.size() ? TrayIcon.MessageType.INFO : TrayIcon.MessageType.WARNING);
+	}
+
+	/**
+	 * Run an object through the upload filters for its type
 	 * 
 	 * @param object
-	 *            The object to upload
+	 *            The object to filter
+	 * @return The filtered object, or null if a filter interrupted the upload
 	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	public void executeUpload(Upload object) {
-		// Run the object through the filters
+	private Upload filter(Upload object) {
 		if (filters.containsKey(object.getClass())) {
 			for (UploadFilter filter : filters.get(object.getClass())) {
 				try {
@@ -1120,34 +1464,71 @@ public class ScreenSnapper {
 				} catch (FilterException e) {
 					// FilterExceptions when thrown should interrupt the upload.
 					showException(e, e.getErrorMessage());
-					return;
+					return null;
 				}
 			}
 		}
+		return object;
+	}
+
+	/**
+	 * Shorten a URL if URL shortening is enabled
+	 * 
+	 * @param url
+	 *            The URL
+	 * @return The shortened URL, or the original URL if shortening is disabled
+	 * @throws Exception
+	 *             If the shortener failed
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private String shorten(String url) throws Exception {
+		if (configuration.getBoolean("shortenurls")) {
+			Uploader shortener = uploaderAssociations.get(URLUpload.class);
+			if (shortener != null) {
+				return shortener.upload(new URLUpload(url));
+			}
+		}
+		return url;
+	}
+
+	/**
+	 * Execute an upload
+	 * 
+	 * @param object
+	 *            The object to upload
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void executeUpload(Upload object) {
+		// Run the object through the filters
+		object = filter(object);
+		if (object == null) {
+			return;
+		}
 		// Then upload it
 		Uploader uploader = uploaderAssociations.get(object.getClass());
 		if (uploader != null) {
+			// Mirrors run alongside the primary upload, retries only repeat the primary
+			List<UploadTask> mirrors = retries == 0 ? startMirrors(uploader, object) : Collections.<UploadTask> emptyList();
+			boolean release = false;
 			try {
-				String url = uploader.upload(object);
+				UploadTask task;
+				Uploader backup = backupAssociations.get(object.getClass());
+				if (backup != null && backup != uploader && scheduler.chooseByBudget(uploader, backup) == backup) {
+					// The primary is out of rate limit budget, send it straight to the backup
+					uploader = backup;
+					backup = null;
+				}
+				if (backup != null && backup != uploader) {
+					task = scheduler.hedge(uploader, backup, object, configuration.getInteger("hedgeDelay", Constants.Configuration.DEFAULT_HEDGE_DELAY));
+				} else {
+					task = scheduler.execute(uploader, object);
+				}
+				String url = task != null ? task.getUrl() : null;
 				if (url != null) {
-					if (configuration.getBoolean("shortenurls")) {
-						Uploader shortener = uploaderAssociations.get(URLUpload.class);
-						if (shortener != null) {
-							url = shortener.upload(new URLUpload(url));
-						}
-					}
-					if (object instanceof ImageUpload) {
-						if (configuration.getBoolean("savelocal") && !(uploader instanceof ImageLocalFileUploader)) {
-							FileOutputStream output = new FileOutputStream(getLocalFile(DateUtil.getCurrentDate() + ".png"));
-							try {
-								ImageIO.write(((ImageUpload) object).getImage(), "png", output);
-							} finally {
-								output.close();
-							}
-						}
-						((ImageUpload) object).getImage().flush();
-						((ImageUpload) object).setImage(null);
-					}
+					// The backup may have won
+					uploader = task.getUploader();
+					url = shorten(url);
+					release = object instanceof ImageUpload;
 					url = url.trim();
 
 					retries = 0;
@@ -1158,15 +1539,119 @@ public class ScreenSnapper {
 					history.addEntry(new HistoryEntry(url, uploader.getName()));
 					icon.displayMessage(Language.getString("uploadComplete"), Language.getString("uploadedTo", url), TrayIcon.MessageType.INFO);
 					logger.info("Upload completed, url: " + url);
+
+					if (object instanceof ImageUpload && configuration.getBoolean("savelocal") && !(uploader instanceof ImageLocalFileUploader)) {
+						saveLocal((ImageUpload) object, url);
+					}
+					if (object instanceof ImageUpload && configuration.getBoolean("historyThumbnails", true)) {
+						storeThumbnail(url, ((ImageUpload) object).getImage());
+					}
 				} else {
 					icon.displayMessage(Language.getString("uploadFailed"), Language.getString("uploadFailedError"), TrayIcon.MessageType.ERROR);
 					logger.severe("Upload failed to execute due to an unknown error");
 				}
+			} catch (UploadCancelledException e) {
+				// Cancelled by the user, don't retry it
+				release = object instanceof ImageUpload;
+				icon.displayMessage(Language.getString("uploadCancelled"), e.getMessage(), TrayIcon.MessageType.INFO);
+				logger.info(e.getMessage());
 			} catch (UploaderConfigurationException e) {
 				icon.displayMessage(Language.getString("uploaderConfigError"), Language.getString("uploaderConfigErrorMessage"), TrayIcon.MessageType.ERROR);
 				logger.log(Level.SEVERE, "Upload failed to execute", e);
 			} catch (Exception e) {
 				retryUpload(object, e);
+			} finally {
+				finishMirrors(mirrors);
+				if (release) {
+					((ImageUpload) object).getImage().flush();
+					((ImageUpload) object).setImage(null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queue a local copy of an uploaded image to be saved in the background
+	 * 
+	 * @param upload
+	 *            The uploaded image
+	 * @param url
+	 *            The URL it was uploaded to
+	 */
+	private void saveLocal(ImageUpload upload, String url) {
+		synchronized (this) {
+			if (archiveWriter == null) {
+				archiveWriter = new ArchiveWriter(LocalArchive.getInstance(), configuration.getInteger("archiveQueueLimit", Constants.Configuration.DEFAULT_ARCHIVE_QUEUE_LIMIT));
+			}
+		}
+		try {
+			archiveWriter.submit(upload, url);
+		} catch (InterruptedException e) {
+			logger.warning("Interrupted while queueing a local copy of " + url);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Store a thumbnail of an uploaded image for the history, before the
+	 * image is released
+	 * 
+	 * @param url
+	 *            The URL it was uploaded to
+	 * @param image
+	 *            The image
+	 */
+	private void storeThumbnail(String url, BufferedImage image) {
+		try {
+			ThumbnailCache.getInstance().store(url, image);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to store a thumbnail of " + url, e);
+		}
+	}
+
+	/**
+	 * Start uploading an object to the mirror uploaders for its type
+	 * 
+	 * @param primary
+	 *            The primary uploader, which is skipped if also a mirror
+	 * @param object
+	 *            The object to upload
+	 * @return The running mirror uploads
+	 */
+	private List<UploadTask> startMirrors(Uploader<?> primary, Upload object) {
+		List<Uploader<?>> list = mirrorAssociations.get(object.getClass());
+		if (list == null) {
+			return Collections.emptyList();
+		}
+		List<UploadTask> tasks = new LinkedList<UploadTask>();
+		for (Uploader<?> mirror : list) {
+			if (mirror != primary) {
+				tasks.add(scheduler.submit(mirror, object));
+			}
+		}
+		return tasks;
+	}
+
+	/**
+	 * Wait for the mirror uploads to complete, adding each URL to the history
+	 * 
+	 * @param mirrors
+	 *            The running mirror uploads
+	 */
+	private void finishMirrors(List<UploadTask> mirrors) {
+		for (UploadTask mirror : mirrors) {
+			String name = mirror.getUploader().getName();
+			try {
+				String url = scheduler.await(mirror);
+				if (url != null) {
+					url = url.trim();
+					history.addEntry(new HistoryEntry(url, name));
+					logger.info("Mirror upload to " + name + " completed, url: " + url);
+				} else {
+					logger.warning("Mirror upload to " + name + " failed due to an unknown error");
+				}
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Mirror upload to " + name + " failed", e);
 			}
 		}
 	}
@@ -1196,21 +1681,6 @@ public class ScreenSnapper {
 		icon.displayMessage(Language.getString("uploadFailed"), msg.toString(), TrayIcon.MessageType.ERROR);
 	}
 
-	/**
-	 * Get the local file for image archiving
-	 * 
-	 * @param fileName
-	 *            The file name
-	 * @return The constructed File object
-	 */
-	public File getLocalFile(String fileName) {
-		File dir = new File(Util.getWorkingDirectory(), "images");
-		if (!dir.exists()) {
-			dir.mkdirs();
-		}
-		return new File(dir, fileName);
-	}
-
 	/**
 	 * Check if we have an uploader for a type
 	 * 
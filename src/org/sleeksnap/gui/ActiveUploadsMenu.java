@@ -0,0 +1,145 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.gui;
+
+import java.awt.Menu;
+import java.awt.MenuItem;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.Timer;
+
+import org.sleeksnap.impl.Language;
+import org.sleeksnap.impl.UploadScheduler;
+import org.sleeksnap.impl.UploadTask;
+import org.sleeksnap.upload.UploadProgress;
+import org.sleeksnap.util.Utils.FormatUtil;
+
+/**
+ * A tray sub menu which lists the running uploads and their progress, with an
+ * item to cancel each of them
+ * 
+ * @author Nikki
+ * 
+ */
+@SuppressWarnings("serial")
+public class ActiveUploadsMenu extends Menu implements ActionListener {
+
+	/**
+	 * The interval to refresh the menu at, in milliseconds
+	 */
+	private static final int REFRESH_INTERVAL = 1000;
+
+	/**
+	 * The scheduler running the uploads
+	 */
+	private UploadScheduler scheduler;
+
+	/**
+	 * The tasks currently shown
+	 */
+	private List<UploadTask> shown = new ArrayList<UploadTask>();
+
+	/**
+	 * The sub menus of the tasks currently shown, in the same order
+	 */
+	private List<Menu> items = new ArrayList<Menu>();
+
+	/**
+	 * The timer used to refresh the menu
+	 */
+	private Timer timer = new Timer(REFRESH_INTERVAL, this);
+
+	public ActiveUploadsMenu(UploadScheduler scheduler) {
+		super(Language.getString("activeUploads"));
+		this.scheduler = scheduler;
+		rebuild(shown);
+		timer.start();
+	}
+
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		refresh();
+	}
+
+	/**
+	 * Refresh the menu, rebuilding it if the running uploads changed
+	 */
+	public void refresh() {
+		List<UploadTask> tasks = scheduler.getActiveTasks();
+		if (!tasks.equals(shown)) {
+			rebuild(tasks);
+			return;
+		}
+		for (int i = 0; i < shown.size(); i++) {
+			items.get(i).setLabel(describe(shown.get(i)));
+		}
+	}
+
+	/**
+	 * Rebuild the menu from a list of running uploads
+	 * 
+	 * @param tasks
+	 *            The running uploads
+	 */
+	private void rebuild(List<UploadTask> tasks) {
+		removeAll();
+		items.clear();
+		shown = tasks;
+		if (tasks.isEmpty()) {
+			MenuItem none = new MenuItem(Language.getString("noActiveUploads"));
+			none.setEnabled(false);
+			add(none);
+			return;
+		}
+		for (final UploadTask task : tasks) {
+			Menu menu = new Menu(describe(task));
+			MenuItem cancel = new MenuItem(Language.getString("cancel"));
+			cancel.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					task.cancel();
+					refresh();
+				}
+			});
+			menu.add(cancel);
+			add(menu);
+			items.add(menu);
+		}
+	}
+
+	/**
+	 * Describe the progress of a running upload
+	 * 
+	 * @param task
+	 *            The upload
+	 * @return The menu label
+	 */
+	private static String describe(UploadTask task) {
+		UploadProgress progress = task.getContext().getProgress();
+		String name = task.getUploader().getName();
+		String sent = FormatUtil.humanReadableByteCount(progress.getTransferred(), true);
+		String rate = FormatUtil.humanReadableByteCount(progress.getCurrentRate(), true);
+		if (progress.getPercent() >= 0) {
+			return Language.getString("activeUploadProgress", name, progress.getPercent(), sent, FormatUtil.humanReadableByteCount(progress.getLength(), true), rate);
+		}
+		return Language.getString("activeUploadSent", name, sent, rate);
+	}
+}
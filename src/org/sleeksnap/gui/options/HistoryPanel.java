@@ -17,30 +17,47 @@
  */
 package org.sleeksnap.gui.options;
 
+import java.awt.Component;
 import java.awt.Desktop;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import javax.swing.DefaultListModel;
+import javax.swing.AbstractListModel;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.GroupLayout;
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
+import javax.swing.JToggleButton;
 import javax.swing.LayoutStyle;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 import org.sleeksnap.gui.OptionPanel;
 import org.sleeksnap.impl.History;
 import org.sleeksnap.impl.HistoryEntry;
+import org.sleeksnap.impl.HistoryIndex;
+import org.sleeksnap.impl.ThumbnailCache;
 import org.sleeksnap.util.Util;
 import org.sleeksnap.util.Utils.ClipboardUtil;
+import org.sleeksnap.util.Utils.IdUtil;
 
 /**
  * An OptionSubPanel for History elements
@@ -64,6 +81,29 @@ public class HistoryPanel extends OptionSubPanel {
 	private JLabel linkLabel;
 	private JScrollPane historyScroll;
 
+	private JTextField searchField;
+	private JToggleButton galleryToggle;
+
+	/**
+	 * The width and height of a cell in the gallery
+	 */
+	private static final int GALLERY_CELL_SIZE = ThumbnailCache.THUMBNAIL_SIZE + 8;
+
+	/**
+	 * The prototype list cells are sized from when showing the list
+	 */
+	private static final HistoryEntry PROTOTYPE = new HistoryEntry("http://example.com/" + IdUtil.nextId() + ".png", "", new Date());
+
+	/**
+	 * The renderer of the list cells
+	 */
+	private HistoryCellRenderer renderer = new HistoryCellRenderer();
+
+	/**
+	 * The search index of the history being shown
+	 */
+	private HistoryIndex index;
+
 	public HistoryPanel(OptionPanel parent) {
 
 	}
@@ -77,8 +117,38 @@ public class HistoryPanel extends OptionSubPanel {
 		historyOpen = new JButton();
 		historyCopy = new JButton();
 		historySelect = new JButton();
+		searchField = new JTextField();
+
+		searchField.setToolTipText("Search by link, uploader or date (2013-05-21)");
+		searchField.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				search();
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				search();
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+				search();
+			}
+		});
 
 		historyList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		// Size every cell from a prototype, so only the visible entries are
+		// loaded from the history instead of all of them
+		historyList.setPrototypeCellValue(PROTOTYPE);
+		historyList.setCellRenderer(renderer);
+
+		galleryToggle = new JToggleButton("Gallery");
+		galleryToggle.addActionListener(new java.awt.event.ActionListener() {
+			public void actionPerformed(java.awt.event.ActionEvent evt) {
+				setGallery(galleryToggle.isSelected());
+			}
+		});
 
 		historyList.addListSelectionListener(new ListSelectionListener() {
 			@Override
@@ -138,6 +208,18 @@ public class HistoryPanel extends OptionSubPanel {
 																GroupLayout.DEFAULT_SIZE,
 																411,
 																Short.MAX_VALUE)
+														.addGroup(
+																historyPanelLayout
+																		.createSequentialGroup()
+																		.addComponent(
+																				searchField,
+																				GroupLayout.DEFAULT_SIZE,
+																				330,
+																				Short.MAX_VALUE)
+																		.addPreferredGap(
+																				LayoutStyle.ComponentPlacement.RELATED)
+																		.addComponent(
+																				galleryToggle))
 														.addGroup(
 																historyPanelLayout
 																		.createParallelGroup(
@@ -194,6 +276,18 @@ public class HistoryPanel extends OptionSubPanel {
 																historySelect))
 										.addPreferredGap(
 												LayoutStyle.ComponentPlacement.UNRELATED)
+										.addGroup(
+												historyPanelLayout
+														.createParallelGroup(
+																GroupLayout.Alignment.BASELINE)
+														.addComponent(searchField,
+																GroupLayout.PREFERRED_SIZE,
+																GroupLayout.DEFAULT_SIZE,
+																GroupLayout.PREFERRED_SIZE)
+														.addComponent(
+																galleryToggle))
+										.addPreferredGap(
+												LayoutStyle.ComponentPlacement.RELATED)
 										.addComponent(historyScroll,
 												GroupLayout.DEFAULT_SIZE, 363,
 												Short.MAX_VALUE)
@@ -225,12 +319,209 @@ public class HistoryPanel extends OptionSubPanel {
 		}
 	}
 
-	public void setHistory(History history) {
-		DefaultListModel model = new DefaultListModel();
-		List<HistoryEntry> list = history.getHistory();
-		for (int i = list.size() - 1; i >= 0; i--) {
-			model.addElement(list.get(i));
+	public void setHistory(final History history) {
+		// Show everything straight away, searching works once it's indexed
+		index = null;
+		historyList.setModel(new ResultListModel(history.getHistory(), true));
+		new SwingWorker<HistoryIndex, Void>() {
+			@Override
+			protected HistoryIndex doInBackground() {
+				HistoryIndex index = new HistoryIndex(history);
+				index.update();
+				return index;
+			}
+
+			@Override
+			protected void done() {
+				try {
+					index = get();
+					if (!searchField.getText().trim().isEmpty()) {
+						search();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Switch between showing the history as a list of links and as a gallery
+	 * of thumbnails
+	 * 
+	 * @param gallery
+	 *            True to show the gallery
+	 */
+	private void setGallery(boolean gallery) {
+		renderer.setGallery(gallery);
+		if (gallery) {
+			historyList.setPrototypeCellValue(null);
+			historyList.setFixedCellWidth(GALLERY_CELL_SIZE);
+			historyList.setFixedCellHeight(GALLERY_CELL_SIZE);
+			historyList.setLayoutOrientation(JList.HORIZONTAL_WRAP);
+			historyList.setVisibleRowCount(-1);
+		} else {
+			historyList.setLayoutOrientation(JList.VERTICAL);
+			historyList.setVisibleRowCount(8);
+			historyList.setPrototypeCellValue(PROTOTYPE);
+		}
+	}
+
+	/**
+	 * Show the entries matching the search field, newest first
+	 */
+	private void search() {
+		if (index != null) {
+			historyList.setModel(new ResultListModel(index.search(searchField.getText()), false));
+		}
+	}
+
+	/**
+	 * Renders history entries as links, or as thumbnails in the gallery. The
+	 * thumbnails are read in the background and the list is repainted as they
+	 * arrive. The most recently shown thumbnails are kept, so scrolling back
+	 * doesn't read them again.
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class HistoryCellRenderer extends DefaultListCellRenderer {
+
+		/**
+		 * The number of thumbnails kept
+		 */
+		private static final int CACHED_THUMBNAILS = 256;
+
+		/**
+		 * The thumbnails shown most recently by URL, null if there is none
+		 */
+		private Map<String, Icon> thumbnails = new LinkedHashMap<String, Icon>(CACHED_THUMBNAILS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Icon> eldest) {
+				return size() > CACHED_THUMBNAILS;
+			}
+		};
+
+		/**
+		 * The URLs whose thumbnails are being read
+		 */
+		private Set<String> loading = new HashSet<String>();
+
+		/**
+		 * Whether the gallery is shown
+		 */
+		private boolean gallery;
+
+		/**
+		 * Set whether the gallery is shown
+		 * 
+		 * @param gallery
+		 *            True to show the gallery
+		 */
+		public void setGallery(boolean gallery) {
+			this.gallery = gallery;
+		}
+
+		@Override
+		public Component getListCellRendererComponent(JList list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+			super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+			if (gallery && value instanceof HistoryEntry) {
+				HistoryEntry entry = (HistoryEntry) value;
+				Icon icon = getThumbnail(list, entry.getUrl());
+				setIcon(icon);
+				// Leave the cell blank until the thumbnail has been read
+				setText(icon != null || loading.contains(entry.getUrl()) ? null : entry.getUrl());
+				setToolTipText(entry.toString());
+				setHorizontalAlignment(CENTER);
+			} else {
+				setToolTipText(null);
+				setHorizontalAlignment(LEADING);
+			}
+			return this;
+		}
+
+		/**
+		 * Get the thumbnail of a URL, starting to read it from the cache in
+		 * the background if it hasn't been shown recently
+		 * 
+		 * @param list
+		 *            The list to repaint once the thumbnail has been read
+		 * @param url
+		 *            The URL
+		 * @return The thumbnail, or null if there is none or it is being read
+		 */
+		private Icon getThumbnail(final JList list, final String url) {
+			if (thumbnails.containsKey(url)) {
+				return thumbnails.get(url);
+			}
+			if (loading.add(url)) {
+				new SwingWorker<BufferedImage, Void>() {
+					@Override
+					protected BufferedImage doInBackground() throws IOException {
+						return ThumbnailCache.getInstance().read(url);
+					}
+
+					@Override
+					protected void done() {
+						Icon icon = null;
+						try {
+							BufferedImage image = get();
+							if (image != null) {
+								icon = new ImageIcon(image);
+							}
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+						loading.remove(url);
+						thumbnails.put(url, icon);
+						list.repaint();
+					}
+				}.execute();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A list model over search results or the history, which doesn't copy
+	 * them
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class ResultListModel extends AbstractListModel {
+
+		/**
+		 * The results
+		 */
+		private List<HistoryEntry> results;
+
+		/**
+		 * Whether to show the list from the end, for history in date order
+		 */
+		private boolean reverse;
+
+		/**
+		 * Construct a new model
+		 * 
+		 * @param results
+		 *            The results
+		 * @param reverse
+		 *            Whether to show the list from the end
+		 */
+		public ResultListModel(List<HistoryEntry> results, boolean reverse) {
+			this.results = results;
+			this.reverse = reverse;
+		}
+
+		@Override
+		public Object getElementAt(int index) {
+			return results.get(reverse ? results.size() - 1 - index : index);
+		}
+
+		@Override
+		public int getSize() {
+			return results.size();
 		}
-		historyList.setModel(model);
 	}
 }
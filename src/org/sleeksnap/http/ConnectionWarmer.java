@@ -0,0 +1,122 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.http;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens a connection to an uploader's endpoint ahead of an upload, so that DNS
+ * resolution, the TCP connect and the TLS handshake are done while the user is
+ * still capturing. The connection is left in the keep-alive pool, which closes
+ * it again once it has been idle for the server's keep-alive timeout.
+ * 
+ * @author Nikki
+ * 
+ */
+public class ConnectionWarmer {
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(ConnectionWarmer.class.getName());
+
+	/**
+	 * The time after warming a host during which it won't be warmed again, in
+	 * milliseconds
+	 */
+	public static final long WARM_TTL = 10000;
+
+	/**
+	 * The timeout of the warming request, in milliseconds
+	 */
+	private static final int WARM_TIMEOUT = 5000;
+
+	/**
+	 * The thread the warming requests are made on
+	 */
+	private ExecutorService service = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Connection warmer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The time each host was last warmed
+	 */
+	private Map<String, Long> warmed = new HashMap<String, Long>();
+
+	/**
+	 * Warm a connection to an endpoint in the background
+	 * 
+	 * @param endpoint
+	 *            The endpoint, ignored if null
+	 */
+	public void warm(String endpoint) {
+		if (endpoint == null) {
+			return;
+		}
+		final URL url;
+		try {
+			url = new URL(endpoint);
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Invalid endpoint " + endpoint, e);
+			return;
+		}
+		String key = url.getProtocol() + "://" + url.getAuthority();
+		long now = System.currentTimeMillis();
+		synchronized (warmed) {
+			Long last = warmed.get(key);
+			if (last != null && now - last < WARM_TTL) {
+				return;
+			}
+			warmed.put(key, now);
+		}
+		service.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// Any response will do, we only want the connection
+					HttpRequest.head(url)
+							.followRedirects(false)
+							.connectTimeout(WARM_TIMEOUT)
+							.readTimeout(WARM_TIMEOUT)
+							.execute();
+				} catch (Exception e) {
+					logger.log(Level.FINE, "Unable to warm a connection to " + url, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop warming connections
+	 */
+	public void shutdown() {
+		service.shutdownNow();
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The content encodings used to compress request bodies and decompress
+ * responses
+ * 
+ * @author Nikki
+ * 
+ */
+public enum ContentEncoding {
+	GZIP("gzip"), DEFLATE("deflate");
+
+	/**
+	 * The value of the Accept-Encoding header for every supported encoding
+	 */
+	public static final String ACCEPT = "gzip, deflate";
+
+	/**
+	 * The name used in the Content-Encoding header
+	 */
+	private String name;
+
+	private ContentEncoding(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the name used in the Content-Encoding header
+	 * 
+	 * @return The name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Compress data with this encoding
+	 * 
+	 * @param data
+	 *            The data
+	 * @return The compressed data
+	 * @throws IOException
+	 *             If an error occurred while compressing
+	 */
+	public byte[] compress(byte[] data) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 4 + 64);
+		DeflaterOutputStream compressor = this == GZIP ? new GZIPOutputStream(output) : new DeflaterOutputStream(output);
+		try {
+			compressor.write(data);
+		} finally {
+			compressor.close();
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Wrap a stream to decompress data in this encoding
+	 * 
+	 * @param input
+	 *            The compressed stream
+	 * @return The decompressed stream
+	 * @throws IOException
+	 *             If the stream header is invalid
+	 */
+	public InputStream decompress(InputStream input) throws IOException {
+		return this == GZIP ? new GZIPInputStream(input) : new InflaterInputStream(input);
+	}
+
+	/**
+	 * Find an encoding by the name used in the Content-Encoding header
+	 * 
+	 * @param name
+	 *            The name
+	 * @return The encoding, or null if it isn't supported
+	 */
+	public static ContentEncoding forName(String name) {
+		if (name != null) {
+			name = name.trim();
+			for (ContentEncoding encoding : values()) {
+				if (encoding.name.equalsIgnoreCase(name)) {
+					return encoding;
+				}
+			}
+		}
+		return null;
+	}
+}
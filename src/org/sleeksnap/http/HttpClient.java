@@ -0,0 +1,360 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sleeksnap.upload.UploadContext;
+import org.sleeksnap.util.StreamUtils;
+import org.sleeksnap.util.Util;
+
+/**
+ * The HTTP client used by every uploader. Connections are kept alive and
+ * pooled by the JVM as long as their response is read to the end and closed,
+ * so instead of calling <code>disconnect()</code> connections opened here
+ * must be handed back with <code>release</code>, which drains anything left
+ * unread.
+ * 
+ * @author Nikki
+ * 
+ */
+public class HttpClient {
+
+	/**
+	 * The maximum number of idle connections kept alive per host
+	 */
+	public static final int MAX_CONNECTIONS_PER_HOST = 8;
+
+	/**
+	 * The maximum number of bytes drained from an unread response before the
+	 * connection is given up on instead
+	 */
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	/**
+	 * The charset used when a response doesn't specify one
+	 */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * The shared instance
+	 */
+	private static final HttpClient instance = new HttpClient();
+
+	static {
+		// Must be set before the keep-alive cache is first used
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS_PER_HOST));
+		}
+		if (System.getProperty("http.keepAlive") == null) {
+			System.setProperty("http.keepAlive", "true");
+		}
+	}
+
+	/**
+	 * Get the shared client
+	 * 
+	 * @return The client
+	 */
+	public static HttpClient getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The connections which have been opened but not released
+	 */
+	private Set<HttpURLConnection> open = Collections.newSetFromMap(new ConcurrentHashMap<HttpURLConnection, Boolean>());
+
+	/**
+	 * The number of requests made
+	 */
+	private AtomicLong requests = new AtomicLong();
+
+	/**
+	 * The number of connections returned to the pool
+	 */
+	private AtomicLong pooled = new AtomicLong();
+
+	/**
+	 * The number of connections closed instead of being pooled
+	 */
+	private AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * Open a connection, with the timeouts of the current upload applied
+	 * 
+	 * @param url
+	 *            The URL
+	 * @return The connection
+	 * @throws IOException
+	 *             If the connection could not be opened
+	 */
+	public HttpURLConnection open(URL url) throws IOException {
+		HttpURLConnection connection = UploadContext.configure((HttpURLConnection) url.openConnection());
+		connection.setRequestProperty("User-Agent", Util.getHttpUserAgent());
+		connection.setRequestProperty("Connection", "keep-alive");
+		connection.setRequestProperty("Accept-Encoding", ContentEncoding.ACCEPT);
+		open.add(connection);
+		requests.incrementAndGet();
+		return connection;
+	}
+
+	/**
+	 * Read the whole response of a connection and release it
+	 * 
+	 * @param connection
+	 *            The connection
+	 * @return The response
+	 * @throws IOException
+	 *             If an error occurred while reading
+	 */
+	public String read(HttpURLConnection connection) throws IOException {
+		String contents = StreamUtils.readContents(getInputStream(connection), getCharset(connection));
+		finished(connection);
+		return contents;
+	}
+
+	/**
+	 * Get the response stream of a connection, decompressed if the server
+	 * compressed it
+	 * 
+	 * @param connection
+	 *            The connection
+	 * @return The response stream
+	 * @throws IOException
+	 *             If an error occurred while opening it
+	 */
+	public InputStream getInputStream(HttpURLConnection connection) throws IOException {
+		InputStream input = connection.getInputStream();
+		ContentEncoding encoding = ContentEncoding.forName(connection.getContentEncoding());
+		return encoding != null ? encoding.decompress(input) : input;
+	}
+
+	/**
+	 * Get the charset of a response from its Content-Type header
+	 * 
+	 * @param connection
+	 *            The connection
+	 * @return The charset, or UTF-8 if it isn't specified or supported
+	 */
+	public Charset getCharset(HttpURLConnection connection) {
+		String type = connection.getContentType();
+		if (type != null) {
+			for (String param : type.split(";")) {
+				param = param.trim();
+				if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+					try {
+						return Charset.forName(param.substring(8).replace("\"", "").trim());
+					} catch (Exception e) {
+						break;
+					}
+				}
+			}
+		}
+		return UTF_8;
+	}
+
+	/**
+	 * Mark a connection whose response has been read to the end and closed,
+	 * which returns it to the pool
+	 * 
+	 * @param connection
+	 *            The connection
+	 */
+	public void finished(HttpURLConnection connection) {
+		if (open.remove(connection)) {
+			observe(connection);
+			pooled.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Release a connection, draining any unread response so that it can be
+	 * reused, or closing it if that is not possible
+	 * 
+	 * @param connection
+	 *            The connection
+	 */
+	public void release(HttpURLConnection connection) {
+		if (!open.remove(connection)) {
+			return;
+		}
+		// The response was never read, only error responses can be drained
+		// without sending the request
+		InputStream input = connection.getErrorStream();
+		if (input != null) {
+			observe(connection);
+		}
+		if (input != null && drain(input)) {
+			pooled.incrementAndGet();
+		} else {
+			connection.disconnect();
+			discarded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Pass the rate limit reported in a response to the running upload
+	 * 
+	 * @param connection
+	 *            The connection, which must have received its response
+	 */
+	private static void observe(HttpURLConnection connection) {
+		UploadContext context = UploadContext.current();
+		if (context != null) {
+			RateLimit limit = RateLimit.parse(connection);
+			if (limit != null) {
+				context.setRateLimit(limit);
+			}
+		}
+	}
+
+	/**
+	 * Read the rest of a response and close it
+	 * 
+	 * @param input
+	 *            The response
+	 * @return True if the response was read completely
+	 */
+	private static boolean drain(InputStream input) {
+		try {
+			try {
+				byte[] buffer = new byte[4096];
+				int total = 0;
+				int read;
+				while ((read = input.read(buffer)) != -1) {
+					total += read;
+					if (total > MAX_DRAIN) {
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get a snapshot of the pool statistics
+	 * 
+	 * @return The statistics
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(requests.get(), open.size(), pooled.get(), discarded.get());
+	}
+
+	/**
+	 * A snapshot of the client's connection statistics
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	public static class Statistics {
+
+		/**
+		 * The number of requests made
+		 */
+		private long requests;
+
+		/**
+		 * The number of connections currently in use
+		 */
+		private int active;
+
+		/**
+		 * The number of connections returned to the pool
+		 */
+		private long pooled;
+
+		/**
+		 * The number of connections closed instead of being pooled
+		 */
+		private long discarded;
+
+		/**
+		 * Construct a new snapshot
+		 * 
+		 * @param requests
+		 *            The number of requests made
+		 * @param active
+		 *            The number of connections in use
+		 * @param pooled
+		 *            The number of connections returned to the pool
+		 * @param discarded
+		 *            The number of connections closed
+		 */
+		public Statistics(long requests, int active, long pooled, long discarded) {
+			this.requests = requests;
+			this.active = active;
+			this.pooled = pooled;
+			this.discarded = discarded;
+		}
+
+		/**
+		 * Get the number of requests made
+		 * 
+		 * @return The number of requests
+		 */
+		public long getRequests() {
+			return requests;
+		}
+
+		/**
+		 * Get the number of connections currently in use
+		 * 
+		 * @return The number of connections
+		 */
+		public int getActive() {
+			return active;
+		}
+
+		/**
+		 * Get the number of connections returned to the pool
+		 * 
+		 * @return The number of connections
+		 */
+		public long getPooled() {
+			return pooled;
+		}
+
+		/**
+		 * Get the number of connections closed instead of being pooled
+		 * 
+		 * @return The number of connections
+		 */
+		public long getDiscarded() {
+			return discarded;
+		}
+
+		@Override
+		public String toString() {
+			return "requests=" + requests + ", active=" + active + ", pooled=" + pooled + ", discarded=" + discarded;
+		}
+	}
+}
@@ -0,0 +1,458 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.sleeksnap.upload.CountingOutputStream;
+import org.sleeksnap.upload.UploadContext;
+
+/**
+ * A single HTTP request. Redirects, headers and timeouts are options of the
+ * request itself rather than global settings, so requests can be built and
+ * executed from any number of threads at once.
+ * 
+ * @author Nikki
+ * 
+ */
+public class HttpRequest {
+
+	/**
+	 * The charset the body is encoded with
+	 */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Bodies smaller than this are never compressed, as it wouldn't save
+	 * anything
+	 */
+	private static final int COMPRESSION_THRESHOLD = 1024;
+
+	/**
+	 * The most bytes of the body written at once
+	 */
+	private static final int WRITE_SIZE = 64 * 1024;
+
+	/**
+	 * The most redirects followed for a request with a body
+	 */
+	private static final int MAX_REDIRECTS = 20;
+
+	/**
+	 * The HTTP status codes which redirect without changing the method
+	 */
+	private static final int HTTP_TEMPORARY_REDIRECT = 307, HTTP_PERMANENT_REDIRECT = 308;
+
+	/**
+	 * The request method
+	 */
+	private String method;
+
+	/**
+	 * The URL
+	 */
+	private URL url;
+
+	/**
+	 * The request headers
+	 */
+	private Map<String, String> headers = new LinkedHashMap<String, String>();
+
+	/**
+	 * Whether redirects are followed
+	 */
+	private boolean followRedirects = true;
+
+	/**
+	 * The connect timeout in milliseconds, or -1 to use the upload's timeout
+	 */
+	private int connectTimeout = -1;
+
+	/**
+	 * The read timeout in milliseconds, or -1 to use the upload's timeout
+	 */
+	private int readTimeout = -1;
+
+	/**
+	 * The request body, or null if there is none
+	 */
+	private String body;
+
+	/**
+	 * The encoding to compress the body with, or null to use the one of the
+	 * running upload
+	 */
+	private ContentEncoding encoding;
+
+	/**
+	 * Construct a new request
+	 * 
+	 * @param method
+	 *            The request method
+	 * @param url
+	 *            The URL
+	 */
+	public HttpRequest(String method, URL url) {
+		this.method = method;
+		this.url = url;
+	}
+
+	/**
+	 * Create a GET request
+	 * 
+	 * @param url
+	 *            The URL
+	 * @return The request
+	 * @throws IOException
+	 *             If the URL is malformed
+	 */
+	public static HttpRequest get(String url) throws IOException {
+		return new HttpRequest("GET", new URL(url));
+	}
+
+	/**
+	 * Create a GET request
+	 * 
+	 * @param url
+	 *            The URL
+	 * @return The request
+	 */
+	public static HttpRequest get(URL url) {
+		return new HttpRequest("GET", url);
+	}
+
+	/**
+	 * Create a HEAD request
+	 * 
+	 * @param url
+	 *            The URL
+	 * @return The request
+	 */
+	public static HttpRequest head(URL url) {
+		return new HttpRequest("HEAD", url);
+	}
+
+	/**
+	 * Create a POST request
+	 * 
+	 * @param url
+	 *            The URL
+	 * @return The request
+	 * @throws IOException
+	 *             If the URL is malformed
+	 */
+	public static HttpRequest post(String url) throws IOException {
+		return new HttpRequest("POST", new URL(url));
+	}
+
+	/**
+	 * Create a POST request
+	 * 
+	 * @param url
+	 *            The URL
+	 * @return The request
+	 */
+	public static HttpRequest post(URL url) {
+		return new HttpRequest("POST", url);
+	}
+
+	/**
+	 * Set a request header
+	 * 
+	 * @param name
+	 *            The header name
+	 * @param value
+	 *            The header value
+	 * @return The request, for chaining
+	 */
+	public HttpRequest header(String name, String value) {
+		headers.put(name, value);
+		return this;
+	}
+
+	/**
+	 * Set whether redirects are followed
+	 * 
+	 * @param followRedirects
+	 *            True to follow redirects
+	 * @return The request, for chaining
+	 */
+	public HttpRequest followRedirects(boolean followRedirects) {
+		this.followRedirects = followRedirects;
+		return this;
+	}
+
+	/**
+	 * Set the connect timeout, overriding the upload's timeout
+	 * 
+	 * @param connectTimeout
+	 *            The timeout in milliseconds
+	 * @return The request, for chaining
+	 */
+	public HttpRequest connectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * Set the read timeout, overriding the upload's timeout
+	 * 
+	 * @param readTimeout
+	 *            The timeout in milliseconds
+	 * @return The request, for chaining
+	 */
+	public HttpRequest readTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * Set the request body
+	 * 
+	 * @param body
+	 *            The body
+	 * @return The request, for chaining
+	 */
+	public HttpRequest body(String body) {
+		this.body = body;
+		return this;
+	}
+
+	/**
+	 * Compress the body, the endpoint must accept the encoding. By default the
+	 * body is compressed only if the running upload's uploader accepts it
+	 * 
+	 * @param encoding
+	 *            The encoding
+	 * @return The request, for chaining
+	 */
+	public HttpRequest compress(ContentEncoding encoding) {
+		this.encoding = encoding;
+		return this;
+	}
+
+	/**
+	 * Set the request body to URL encoded form data
+	 * 
+	 * @param data
+	 *            The form data
+	 * @return The request, for chaining
+	 * @throws IOException
+	 *             If an encoding error occurs
+	 */
+	public HttpRequest body(RequestData data) throws IOException {
+		return body(data.toURLEncodedString());
+	}
+
+	/**
+	 * Open the connection and send the request. The connection must be
+	 * handed back to the client with <code>HttpClient.release</code>
+	 * 
+	 * @param client
+	 *            The client to open the connection with
+	 * @return The connection
+	 * @throws IOException
+	 *             If an error occurred while sending the request
+	 */
+	public HttpURLConnection open(HttpClient client) throws IOException {
+		byte[] data = null;
+		String contentEncoding = null;
+		if (body != null) {
+			data = body.getBytes(CHARSET);
+			ContentEncoding encoding = getEncoding();
+			if (encoding != null && data.length >= COMPRESSION_THRESHOLD) {
+				data = encoding.compress(data);
+				contentEncoding = encoding.getName();
+			}
+		}
+		UploadContext context = UploadContext.current();
+		long transferred = context != null ? context.getTransferred() : 0;
+		URL target = url;
+		String method = this.method;
+		// A streamed body can't be sent again by the connection, so redirects
+		// of requests with a body are followed here
+		for (int redirects = 0;; redirects++) {
+			HttpURLConnection connection = open(client, target, method, data, contentEncoding);
+			if (data == null || !followRedirects) {
+				return connection;
+			}
+			String location;
+			try {
+				int code = connection.getResponseCode();
+				location = code / 100 == 3 && code != HttpURLConnection.HTTP_NOT_MODIFIED ? connection.getHeaderField("Location") : null;
+				if (location == null) {
+					return connection;
+				}
+				if (redirects == MAX_REDIRECTS) {
+					throw new IOException("Too many redirects, last to " + location);
+				}
+				if (code != HTTP_TEMPORARY_REDIRECT && code != HTTP_PERMANENT_REDIRECT) {
+					// Like the connection itself, follow other redirects with a GET
+					method = "GET";
+					data = null;
+				} else if (context != null) {
+					// The body is sent again, don't count it twice
+					context.setTransferred(transferred);
+				}
+				// Read the body so the connection can be reused
+				client.read(connection);
+			} catch (IOException e) {
+				client.release(connection);
+				throw e;
+			}
+			target = new URL(target, location);
+		}
+	}
+
+	/**
+	 * Open a connection and send the request to a URL
+	 * 
+	 * @param client
+	 *            The client to open the connection with
+	 * @param target
+	 *            The URL
+	 * @param method
+	 *            The request method
+	 * @param data
+	 *            The body, or null if there is none
+	 * @param contentEncoding
+	 *            The encoding the body was compressed with, or null
+	 * @return The connection
+	 * @throws IOException
+	 *             If an error occurred while sending the request
+	 */
+	private HttpURLConnection open(HttpClient client, URL target, String method, byte[] data, String contentEncoding) throws IOException {
+		HttpURLConnection connection = client.open(target);
+		try {
+			connection.setRequestMethod(method);
+			connection.setInstanceFollowRedirects(followRedirects && data == null);
+			if (connectTimeout >= 0) {
+				connection.setConnectTimeout(connectTimeout);
+			}
+			if (readTimeout >= 0) {
+				connection.setReadTimeout(readTimeout);
+			}
+			for (Entry<String, String> entry : headers.entrySet()) {
+				connection.setRequestProperty(entry.getKey(), entry.getValue());
+			}
+			if (data != null) {
+				if (contentEncoding != null) {
+					connection.setRequestProperty("Content-Encoding", contentEncoding);
+				}
+				send(connection, data);
+			}
+			return connection;
+		} catch (IOException e) {
+			client.release(connection);
+			throw e;
+		}
+	}
+
+	/**
+	 * Send a body to a connection as it is written, rather than letting the
+	 * connection buffer it until the response is requested, so the progress
+	 * and bandwidth limit of the running upload apply to the real transfer
+	 * 
+	 * @param connection
+	 *            The connection, which must not be connected yet
+	 * @param data
+	 *            The body
+	 * @throws IOException
+	 *             If an error occurred while sending
+	 */
+	public static void send(HttpURLConnection connection, byte[] data) throws IOException {
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(data.length);
+		UploadContext.expect(data.length);
+		OutputStream output = new CountingOutputStream(connection.getOutputStream());
+		try {
+			for (int offset = 0; offset < data.length;) {
+				int length = Math.min(UploadContext.getChunkSize(WRITE_SIZE), data.length - offset);
+				output.write(data, offset, length);
+				offset += length;
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Get the encoding to compress the body with
+	 * 
+	 * @return The encoding, or null to send it uncompressed
+	 */
+	private ContentEncoding getEncoding() {
+		if (encoding != null) {
+			return encoding;
+		}
+		UploadContext context = UploadContext.current();
+		return context != null ? ContentEncoding.forName(context.getRequestEncoding()) : null;
+	}
+
+	/**
+	 * Execute the request
+	 * 
+	 * @return The response
+	 * @throws IOException
+	 *             If an error occurred
+	 */
+	public String execute() throws IOException {
+		return execute(ResponseType.CONTENTS);
+	}
+
+	/**
+	 * Execute the request. Redirects are not followed if the redirect URL is
+	 * requested
+	 * 
+	 * @param responseType
+	 *            The part of the response to return
+	 * @return The response body, or the redirect URL
+	 * @throws IOException
+	 *             If an error occurred
+	 */
+	public String execute(ResponseType responseType) throws IOException {
+		if (responseType == ResponseType.REDIRECT_URL) {
+			followRedirects = false;
+		}
+		HttpClient client = HttpClient.getInstance();
+		HttpURLConnection connection = open(client);
+		try {
+			switch (responseType) {
+			case REDIRECT_URL:
+				String location = connection.getHeaderField("Location");
+				// Read the body either way so the connection can be reused
+				String body = client.read(connection);
+				if (location == null) {
+					throw new IOException("No location header found, body: " + body);
+				}
+				return location;
+			default:
+				return client.read(connection);
+			}
+		} finally {
+			client.release(connection);
+		}
+	}
+}
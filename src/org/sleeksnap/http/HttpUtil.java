@@ -18,9 +18,7 @@
 package org.sleeksnap.http;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.HashMap;
@@ -28,9 +26,6 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import org.sleeksnap.util.StreamUtils;
-import org.sleeksnap.util.Util;
-
 
 /**
  * A simple HTTP Utility which assists with POST/GET methods
@@ -79,7 +74,7 @@ public class HttpUtil {
 	 *             If an error occurred
 	 */
 	public static String executeGet(URL url) throws IOException {
-		return StreamUtils.readContents(url.openStream());
+		return HttpRequest.get(url).execute();
 	}
 
 	/**
@@ -205,37 +200,7 @@ public class HttpUtil {
 	 *             If an error occurred
 	 */
 	public static String executePost(URL url, String data, ResponseType responseType) throws IOException {
-		// Set redirect following to false if we want the redirect url
-		if (responseType == ResponseType.REDIRECT_URL) {
-			HttpURLConnection.setFollowRedirects(false);
-		}
-		// Execute the request
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-		connection.setRequestProperty("User-Agent", Util.getHttpUserAgent());
-		connection.setDoOutput(true);
-		try {
-			OutputStreamWriter writer = new OutputStreamWriter(
-					connection.getOutputStream());
-			writer.write(data);
-			writer.flush();
-			writer.close();
-
-			switch(responseType) {
-			case REDIRECT_URL:
-				String location = connection.getHeaderField("Location");
-				if (location == null) {
-					throw new IOException("No location header found, body: " + StreamUtils.readContents(connection.getInputStream()));
-				}
-				return location;
-			default:
-				return StreamUtils.readContents(connection.getInputStream());
-			}
-		} finally {
-			connection.disconnect();
-			
-			// Reset redirect following
-			HttpURLConnection.setFollowRedirects(true);
-		}
+		return HttpRequest.post(url).body(data).execute(responseType);
 	}
 	
 	/**
@@ -18,21 +18,27 @@
 package org.sleeksnap.http;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 
+import org.sleeksnap.upload.CountingOutputStream;
+import org.sleeksnap.upload.UploadContext;
+
 /**
  * Used to execute a Multipart POST request to a URL
  * 
@@ -41,6 +47,26 @@ import java.util.Random;
  */
 public class MultipartPostMethod {
 
+	/**
+	 * The charset used for part headers and values
+	 */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * The size of the buffer used to copy file data
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The chunk size used when the body length is unknown
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The line separator
+	 */
+	private static final byte[] NEWLINE = { '\r', '\n' };
+
 	/**
 	 * The URL of this method
 	 */
@@ -89,13 +115,15 @@ public class MultipartPostMethod {
 	}
 
 	/**
-	 * Execute the request, I will be explaining this
+	 * Execute the request, streaming the body to the connection. If the length
+	 * of every part is known the body length is sent up front, otherwise the
+	 * body is sent in chunks, so the request is never buffered in memory.
 	 * 
 	 * @throws IOException
 	 *             If a problem occurs when writing/opening the connection
 	 */
 	public void execute() throws IOException {
-		connection = (HttpURLConnection) url.openConnection();
+		connection = HttpClient.getInstance().open(url);
 		// The separator string
 		String boundary = "---------------------------" + randomString()
 				+ randomString() + randomString();
@@ -103,28 +131,24 @@ public class MultipartPostMethod {
 		connection.setRequestProperty("Content-Type",
 				"multipart/form-data; boundary=" + boundary);
 		boundary = "--" + boundary;
-		// Let the connection output data
-		connection.setDoOutput(true);
-		// Get the output stream and open a writer to it
-		OutputStream os = connection.getOutputStream();
-		OutputStreamWriter writer = new OutputStreamWriter(os);
-		// Loop through the parameters
+		// Build the headers and values of each part before writing, so we know
+		// the length of the body
+		List<Part> parts = new ArrayList<Part>(parameters.size());
+		long length = 0;
 		for (Entry<String, Object> entry : parameters.entrySet()) {
+			Part part = new Part();
+			StringBuilder header = new StringBuilder();
 			// Write the boundary (separator)
-			writer.write(boundary + "\r\n");
+			header.append(boundary).append("\r\n");
 			// Write the content name
-			writer.write("Content-Disposition: form-data; name=\""
-					+ entry.getKey() + "\"");
+			header.append("Content-Disposition: form-data; name=\"")
+					.append(entry.getKey()).append("\"");
 			// Get the content value
 			Object object = entry.getValue();
-			if (object instanceof MultipartFile || object instanceof File) { // If it is an upload (We
-												// simulate this if we have an
-												// input/file name), use this to
-												// write it
+			if (object instanceof MultipartFile || object instanceof File) {
 				MultipartFile file = object instanceof File ? MultipartFile.create((File) object) : (MultipartFile) object;
 				// Write the file name with the content name
-				writer.write("; filename=\"" + file.getName() + "\"");
-				writer.write("\r\n");
+				header.append("; filename=\"").append(file.getName()).append("\"\r\n");
 				// Get the mime type
 				String type = URLConnection.guessContentTypeFromName(file
 						.getName());
@@ -132,47 +156,68 @@ public class MultipartPostMethod {
 					type = "application/octet-stream";
 				}
 				// Write the mime type
-				writer.write("Content-Type: " + type);
-				writer.write("\r\n\r\n");
-				// Flush data because we will be writing to it from a different
-				// stream
-				writer.flush();
-				// Open the stream and copy the data into the output
-				InputStream input = file.getStream();
-				try {
-					byte[] buffer = new byte[1024];
-					while (true) {
-						int read = input.read(buffer, 0, buffer.length);
-						if (read == -1) {
-							break;
-						}
-						os.write(buffer, 0, read);
-					}
-				} finally {
-					os.flush();
-					input.close();
+				header.append("Content-Type: ").append(type).append("\r\n\r\n");
+				part.file = file;
+				if (length != -1) {
+					length = file.getLength() == -1 ? -1 : length + file.getLength();
 				}
 			} else {
 				// Write a newline before the content
-				writer.write("\r\n\r\n");
-				// Write the data
-				writer.write(entry.getValue().toString());
+				header.append("\r\n\r\n");
+				part.value = object.toString().getBytes(CHARSET);
+				if (length != -1) {
+					length += part.value.length;
+				}
 			}
-			// Write a final newline
-			writer.write("\r\n");
+			part.header = header.toString().getBytes(CHARSET);
+			if (length != -1) {
+				// The header and the trailing newline
+				length += part.header.length + 2;
+			}
+			parts.add(part);
 		}
-
 		// Set the final boundary
-		boundary = boundary + "--";
-		// Write a boundary to let the server know the previous content area is
-		// finished
-		writer.write(boundary);
-		// Write a final newline
-		writer.write("\r\n");
-
-		// Flush and close the output
-		writer.flush();
-		writer.close();
+		byte[] end = (boundary + "--\r\n").getBytes(CHARSET);
+		// Let the connection output data, without buffering it
+		connection.setDoOutput(true);
+		if (length != -1) {
+			connection.setFixedLengthStreamingMode(length + end.length);
+			UploadContext.expect(length + end.length);
+		} else {
+			connection.setChunkedStreamingMode(CHUNK_SIZE);
+		}
+		OutputStream os = new CountingOutputStream(connection.getOutputStream());
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for (Part part : parts) {
+				os.write(part.header);
+				if (part.file != null) {
+					// Open the stream and copy the data into the output
+					InputStream input = part.file.getStream();
+					try {
+						while (true) {
+							int read = input.read(buffer, 0, UploadContext.getChunkSize(buffer.length));
+							if (read == -1) {
+								break;
+							}
+							os.write(buffer, 0, read);
+						}
+					} finally {
+						input.close();
+					}
+				} else {
+					os.write(part.value);
+				}
+				// Write a final newline
+				os.write(NEWLINE);
+			}
+			// Write a boundary to let the server know the previous content area
+			// is finished
+			os.write(end);
+			os.flush();
+		} finally {
+			os.close();
+		}
 	}
 
 	/**
@@ -184,35 +229,50 @@ public class MultipartPostMethod {
 	 */
 	public String getResponse() throws IOException {
 		StringBuilder contents = new StringBuilder();
-		BufferedReader reader = new BufferedReader(new InputStreamReader(
-				connection.getInputStream()));
+		boolean read = false;
 		try {
-			String line;
-			while ((line = reader.readLine()) != null) {
-				contents.append(line).append("\n");
+			HttpClient client = HttpClient.getInstance();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					client.getInputStream(connection), client.getCharset(connection)));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					contents.append(line).append("\n");
+				}
+				read = true;
+			} finally {
+				reader.close();
 			}
 		} finally {
-			reader.close();
+			// Return the connection to the pool, or close it if it failed
+			if (read) {
+				HttpClient.getInstance().finished(connection);
+			} else {
+				close();
+			}
 		}
 		return contents.toString();
 	}
 
 	/**
-	 * Get the input stream
+	 * Get the input stream, decompressed if the server compressed it
 	 * 
 	 * @return The input stream
 	 * @throws IOException
 	 *             If an error occurs while opening
 	 */
 	public InputStream getInputStream() throws IOException {
-		return connection.getInputStream();
+		return HttpClient.getInstance().getInputStream(connection);
 	}
 
 	/**
-	 * Close this connection
+	 * Release this connection, it is kept alive for reuse if the response
+	 * has been read
 	 */
 	public void close() {
-		connection.disconnect();
+		if (connection != null) {
+			HttpClient.getInstance().release(connection);
+		}
 	}
 
 	@Override
@@ -234,6 +294,29 @@ public class MultipartPostMethod {
 		return Long.toString(random.nextLong(), 36);
 	}
 
+	/**
+	 * A single encoded part of the request body
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class Part {
+		/**
+		 * The boundary and part headers
+		 */
+		private byte[] header;
+
+		/**
+		 * The value, if this is not a file
+		 */
+		private byte[] value;
+
+		/**
+		 * The file, if this is a file
+		 */
+		private MultipartFile file;
+	}
+
 	/**
 	 * A simple wrapper to simulate a File, except we can push a name and the
 	 * data from memory
@@ -253,7 +336,13 @@ public class MultipartPostMethod {
 		private InputStream stream;
 
 		/**
-		 * Construct a new "File Upload" instance
+		 * The length of the data, or -1 if unknown
+		 */
+		private long length;
+
+		/**
+		 * Construct a new "File Upload" instance. The length is only known if
+		 * the stream is a ByteArrayInputStream
 		 * 
 		 * @param name
 		 *            The name
@@ -261,8 +350,23 @@ public class MultipartPostMethod {
 		 *            The input stream which contains the data
 		 */
 		public MultipartFile(String name, InputStream stream) {
+			this(name, stream, stream instanceof ByteArrayInputStream ? ((ByteArrayInputStream) stream).available() : -1);
+		}
+
+		/**
+		 * Construct a new "File Upload" instance
+		 * 
+		 * @param name
+		 *            The name
+		 * @param stream
+		 *            The input stream which contains the data
+		 * @param length
+		 *            The length of the data, or -1 if unknown
+		 */
+		public MultipartFile(String name, InputStream stream, long length) {
 			this.name = name;
 			this.stream = stream;
+			this.length = length;
 		}
 
 		/**
@@ -283,6 +387,15 @@ public class MultipartPostMethod {
 			return stream;
 		}
 
+		/**
+		 * Get the length of the data
+		 * 
+		 * @return The length, or -1 if unknown
+		 */
+		public long getLength() {
+			return length;
+		}
+
 		/**
 		 * Create a FileUpload from an existing file
 		 * 
@@ -293,7 +406,7 @@ public class MultipartPostMethod {
 		 *             If a problem occured while opening the file
 		 */
 		public static MultipartFile create(File file) throws IOException {
-			return new MultipartFile(file.getName(), new FileInputStream(file));
+			return new MultipartFile(file.getName(), new FileInputStream(file), file.length());
 		}
 	}
 }
\ No newline at end of file
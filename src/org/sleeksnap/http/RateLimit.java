@@ -0,0 +1,178 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.http;
+
+import java.net.HttpURLConnection;
+
+/**
+ * The rate limit a server reported in its response headers. The most
+ * restrictive of the limits found is kept, so a server reporting both a
+ * client and a user limit (such as Imgur) is represented by the one closest
+ * to running out.
+ * 
+ * @author Nikki
+ * 
+ */
+public class RateLimit {
+
+	/**
+	 * The HTTP status code for too many requests
+	 */
+	public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * The time assumed until a limit resets if the server doesn't say
+	 */
+	private static final long DEFAULT_RESET = 60000;
+
+	/**
+	 * The length of a day, daily quotas reset at midnight UTC
+	 */
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * Reset values above this are epoch seconds, below are seconds from now
+	 */
+	private static final long EPOCH_THRESHOLD = 1000000000L;
+
+	/**
+	 * The pairs of remaining and reset headers. The reset is null for a daily
+	 * quota whose reset the server doesn't send, such as Imgur's client limit
+	 */
+	private static final String[][] HEADERS = {
+		{ "X-RateLimit-Remaining", "X-RateLimit-Reset" },
+		{ "X-RateLimit-UserRemaining", "X-RateLimit-UserReset" },
+		{ "X-RateLimit-ClientRemaining", null },
+		{ "X-Post-Rate-Limit-Remaining", "X-Post-Rate-Limit-Reset" },
+	};
+
+	/**
+	 * The number of requests remaining
+	 */
+	private long remaining;
+
+	/**
+	 * The time the limit resets, in milliseconds since the epoch
+	 */
+	private long reset;
+
+	/**
+	 * Construct a new rate limit
+	 * 
+	 * @param remaining
+	 *            The number of requests remaining
+	 * @param reset
+	 *            The time the limit resets, in milliseconds since the epoch
+	 */
+	public RateLimit(long remaining, long reset) {
+		this.remaining = remaining;
+		this.reset = reset;
+	}
+
+	/**
+	 * Get the number of requests remaining
+	 * 
+	 * @return The number of requests
+	 */
+	public long getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Get the time the limit resets
+	 * 
+	 * @return The time in milliseconds since the epoch
+	 */
+	public long getReset() {
+		return reset;
+	}
+
+	/**
+	 * Parse the rate limit from the headers of a response which has been
+	 * received
+	 * 
+	 * @param connection
+	 *            The connection
+	 * @return The most restrictive limit, or null if the server sent none
+	 */
+	public static RateLimit parse(HttpURLConnection connection) {
+		long now = System.currentTimeMillis();
+		RateLimit limit = null;
+		for (String[] pair : HEADERS) {
+			long remaining = parseLong(connection.getHeaderField(pair[0]));
+			if (remaining < 0) {
+				continue;
+			}
+			long reset = pair[1] != null ? toTime(parseLong(connection.getHeaderField(pair[1])), now) : (now / DAY + 1) * DAY;
+			RateLimit found = new RateLimit(remaining, reset);
+			if (limit == null || found.remaining < limit.remaining) {
+				limit = found;
+			}
+		}
+		String retryAfter = connection.getHeaderField("Retry-After");
+		if (retryAfter != null) {
+			// Either a number of seconds or an HTTP date
+			long seconds = parseLong(retryAfter);
+			long time = seconds >= 0 ? toTime(seconds, now) : connection.getHeaderFieldDate("Retry-After", -1);
+			if (time >= 0) {
+				// The server has already refused us, nothing remains until then
+				limit = new RateLimit(0, time);
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * Convert a reset header value to a time
+	 * 
+	 * @param value
+	 *            The header value, or -1 if it wasn't sent
+	 * @param now
+	 *            The current time
+	 * @return The time in milliseconds since the epoch
+	 */
+	private static long toTime(long value, long now) {
+		if (value < 0) {
+			return now + DEFAULT_RESET;
+		}
+		return value > EPOCH_THRESHOLD ? value * 1000 : now + value * 1000;
+	}
+
+	/**
+	 * Parse a header value
+	 * 
+	 * @param value
+	 *            The value
+	 * @return The number, or -1 if missing or not a number
+	 */
+	private static long parseLong(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return remaining + " remaining until " + new java.util.Date(reset);
+	}
+}
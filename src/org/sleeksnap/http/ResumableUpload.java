@@ -0,0 +1,353 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+import org.sleeksnap.upload.CountingOutputStream;
+import org.sleeksnap.upload.UploadContext;
+import org.sleeksnap.util.Utils.FileUtils;
+import org.sleeksnap.util.Utils.ImageUtil;
+
+/**
+ * Uploads a file with the tus resumable upload protocol. The file is sent in
+ * chunks, and the location of the upload on the server is kept in a state file
+ * so that a failed upload continues from the offset the server reports, even
+ * after a restart, instead of starting again from the beginning.
+ * 
+ * HttpURLConnection does not allow PATCH requests, so chunks are sent as POST
+ * requests with the X-HTTP-Method-Override header, as the protocol allows.
+ * 
+ * @author Nikki
+ * 
+ */
+public class ResumableUpload {
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(ResumableUpload.class.getName());
+
+	/**
+	 * The protocol version
+	 */
+	private static final String TUS_VERSION = "1.0.0";
+
+	/**
+	 * The default chunk size
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * The number of times a failed chunk is retried before giving up
+	 */
+	private static final int CHUNK_RETRIES = 3;
+
+	/**
+	 * The endpoint which creates uploads
+	 */
+	private URL endpoint;
+
+	/**
+	 * The file to upload
+	 */
+	private File file;
+
+	/**
+	 * The directory the upload state is kept in
+	 */
+	private File stateDirectory;
+
+	/**
+	 * The size of each chunk
+	 */
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * Construct a new resumable upload
+	 * 
+	 * @param endpoint
+	 *            The endpoint which creates uploads
+	 * @param file
+	 *            The file to upload
+	 * @param stateDirectory
+	 *            The directory to keep the upload state in
+	 */
+	public ResumableUpload(URL endpoint, File file, File stateDirectory) {
+		this.endpoint = endpoint;
+		this.file = file;
+		this.stateDirectory = stateDirectory;
+	}
+
+	/**
+	 * Set the size of each chunk
+	 * 
+	 * @param chunkSize
+	 *            The size in bytes
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Upload the file, resuming a previous attempt if the server still has it
+	 * 
+	 * @return The URL of the upload
+	 * @throws IOException
+	 *             If the upload failed, its progress is kept so that it can
+	 *             be resumed
+	 */
+	public String execute() throws IOException {
+		File stateFile = getStateFile();
+		long length = file.length();
+		URL location = null;
+		long offset = -1;
+		if (stateFile.exists()) {
+			try {
+				JSONObject state = new JSONObject(FileUtils.readFile(stateFile));
+				location = new URL(state.getString("location"));
+				offset = getOffset(location);
+			} catch (Exception e) {
+				logger.log(Level.INFO, "Unable to resume the upload of " + file + ", starting again", e);
+				location = null;
+			}
+		}
+		if (location == null || offset < 0) {
+			location = create(length);
+			offset = 0;
+			saveState(stateFile, location);
+		} else {
+			logger.info("Resuming the upload of " + file + " from byte " + offset);
+		}
+		setProgress(offset);
+
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			int failures = 0;
+			while (offset < length) {
+				try {
+					offset = sendChunk(location, channel, offset, (int) Math.min(chunkSize, length - offset));
+					failures = 0;
+				} catch (IOException e) {
+					UploadContext context = UploadContext.current();
+					if (++failures > CHUNK_RETRIES || context != null && context.isAborted()) {
+						throw e;
+					}
+					logger.log(Level.INFO, "Chunk failed, checking the offset of " + location, e);
+					long current = getOffset(location);
+					if (current < 0) {
+						throw new IOException("The server no longer has the upload", e);
+					}
+					offset = current;
+					setProgress(offset);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		stateFile.delete();
+		return location.toString();
+	}
+
+	/**
+	 * Create the upload on the server
+	 * 
+	 * @param length
+	 *            The length of the file
+	 * @return The location of the upload
+	 * @throws IOException
+	 *             If the server did not create it
+	 */
+	private URL create(long length) throws IOException {
+		HttpClient client = HttpClient.getInstance();
+		HttpURLConnection connection = client.open(endpoint);
+		try {
+			connection.setRequestMethod("POST");
+			connection.setInstanceFollowRedirects(false);
+			connection.setRequestProperty("Tus-Resumable", TUS_VERSION);
+			connection.setRequestProperty("Upload-Length", Long.toString(length));
+			connection.setRequestProperty("Upload-Metadata", "filename " + ImageUtil.toBase64(file.getName().getBytes("UTF-8")));
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(0);
+			connection.getOutputStream().close();
+			int code = connection.getResponseCode();
+			String location = connection.getHeaderField("Location");
+			if (code != HttpURLConnection.HTTP_CREATED || location == null) {
+				throw new IOException("Unable to create the upload, the server returned HTTP " + code);
+			}
+			client.read(connection);
+			return new URL(endpoint, location);
+		} finally {
+			client.release(connection);
+		}
+	}
+
+	/**
+	 * Ask the server how much of an upload it has received
+	 * 
+	 * @param location
+	 *            The location of the upload
+	 * @return The offset, or -1 if the server does not have the upload
+	 * @throws IOException
+	 *             If the request failed
+	 */
+	private long getOffset(URL location) throws IOException {
+		HttpClient client = HttpClient.getInstance();
+		HttpURLConnection connection = client.open(location);
+		try {
+			connection.setRequestMethod("HEAD");
+			connection.setRequestProperty("Tus-Resumable", TUS_VERSION);
+			int code = connection.getResponseCode();
+			String offset = connection.getHeaderField("Upload-Offset");
+			if (code / 100 != 2 || offset == null) {
+				return -1;
+			}
+			client.read(connection);
+			return Long.parseLong(offset);
+		} finally {
+			client.release(connection);
+		}
+	}
+
+	/**
+	 * Send a chunk of the file
+	 * 
+	 * @param location
+	 *            The location of the upload
+	 * @param channel
+	 *            The file
+	 * @param offset
+	 *            The offset of the chunk
+	 * @param length
+	 *            The length of the chunk
+	 * @return The new offset reported by the server
+	 * @throws IOException
+	 *             If the chunk was not accepted
+	 */
+	private long sendChunk(URL location, FileChannel channel, long offset, int length) throws IOException {
+		HttpClient client = HttpClient.getInstance();
+		HttpURLConnection connection = client.open(location);
+		try {
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+			connection.setRequestProperty("Tus-Resumable", TUS_VERSION);
+			connection.setRequestProperty("Upload-Offset", Long.toString(offset));
+			connection.setRequestProperty("Content-Type", "application/offset+octet-stream");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(length);
+			OutputStream output = new CountingOutputStream(connection.getOutputStream());
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+				long position = offset;
+				long end = offset + length;
+				while (position < end) {
+					buffer.clear();
+					buffer.limit((int) Math.min(UploadContext.getChunkSize(buffer.capacity()), end - position));
+					int read = channel.read(buffer, position);
+					if (read == -1) {
+						throw new IOException("The file was truncated while uploading");
+					}
+					output.write(buffer.array(), 0, read);
+					position += read;
+				}
+			} finally {
+				output.close();
+			}
+			int code = connection.getResponseCode();
+			String newOffset = connection.getHeaderField("Upload-Offset");
+			if (code / 100 != 2 || newOffset == null) {
+				throw new IOException("The server rejected the chunk at " + offset + " with HTTP " + code);
+			}
+			client.read(connection);
+			return Long.parseLong(newOffset);
+		} finally {
+			client.release(connection);
+		}
+	}
+
+	/**
+	 * Set the progress of the running upload to the offset on the server
+	 * 
+	 * @param offset
+	 *            The offset
+	 */
+	private static void setProgress(long offset) {
+		UploadContext context = UploadContext.current();
+		if (context != null) {
+			context.setTransferred(offset);
+		}
+	}
+
+	/**
+	 * Save the location of the upload
+	 * 
+	 * @param stateFile
+	 *            The state file
+	 * @param location
+	 *            The location of the upload
+	 * @throws IOException
+	 *             If the state could not be written
+	 */
+	private void saveState(File stateFile, URL location) throws IOException {
+		if (!stateDirectory.exists()) {
+			stateDirectory.mkdirs();
+		}
+		JSONObject state = new JSONObject();
+		state.put("location", location.toString());
+		state.put("file", file.getAbsolutePath());
+		state.put("length", file.length());
+		OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(stateFile), "UTF-8");
+		try {
+			writer.write(state.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Get the state file of this upload, named after the endpoint, the path,
+	 * the size and the modification time of the file so that a changed file
+	 * is not resumed
+	 * 
+	 * @return The state file
+	 */
+	private File getStateFile() {
+		String key = endpoint + "\n" + file.getAbsolutePath() + "\n" + file.length() + "\n" + file.lastModified();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			String name = String.format("%040x", new BigInteger(1, digest.digest(key.getBytes("UTF-8"))));
+			return new File(stateDirectory, name + ".json");
+		} catch (Exception e) {
+			return new File(stateDirectory, Integer.toHexString(key.hashCode()) + ".json");
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.sleeksnap.upload.ImageUpload;
+import org.sleeksnap.util.Utils.FileUtils;
+import org.sleeksnap.util.Utils.ImageUtil;
+
+/**
+ * Saves local copies of uploaded images to the archive in the background, so
+ * the URL can be delivered as soon as the upload returns. Images which haven't
+ * been encoded yet are encoded on the writer thread. Everything waiting when
+ * the writer wakes up is written as one batch and synced together.
+ * 
+ * The queue is limited to a number of bytes, counting the raw image size for
+ * images which still need encoding. Once it is full, <code>submit</code>
+ * blocks until the writer catches up.
+ * 
+ * @author Nikki
+ * 
+ */
+public class ArchiveWriter implements Runnable {
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(ArchiveWriter.class.getName());
+
+	/**
+	 * The archive to write to
+	 */
+	private LocalArchive archive;
+
+	/**
+	 * The most bytes which may wait in the queue
+	 */
+	private volatile long limit;
+
+	/**
+	 * The images waiting to be written
+	 */
+	private LinkedList<Write> queue = new LinkedList<Write>();
+
+	/**
+	 * The bytes waiting in the queue, including the batch being written
+	 */
+	private long queued = 0;
+
+	/**
+	 * Whether the writer has been asked to stop
+	 */
+	private boolean closed = false;
+
+	/**
+	 * The writer thread
+	 */
+	private Thread thread;
+
+	/**
+	 * Construct a new writer
+	 * 
+	 * @param archive
+	 *            The archive to write to
+	 * @param limit
+	 *            The most bytes which may wait in the queue
+	 */
+	public ArchiveWriter(LocalArchive archive, long limit) {
+		this.archive = archive;
+		this.limit = limit;
+		this.thread = new Thread(this, "Archive writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Set the most bytes which may wait in the queue
+	 * 
+	 * @param limit
+	 *            The limit in bytes
+	 */
+	public void setLimit(long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Queue an image to be saved, waiting if the queue is full. An image
+	 * larger than the limit is accepted once the queue is empty.
+	 * 
+	 * @param upload
+	 *            The uploaded image
+	 * @param url
+	 *            The URL it was uploaded to
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for space
+	 */
+	public void submit(ImageUpload upload, String url) throws InterruptedException {
+		Write write = new Write(upload, FileUtils.generateFileName(upload), url);
+		synchronized (queue) {
+			if (closed) {
+				throw new IllegalStateException("The archive writer has been shut down");
+			}
+			while (queued > 0 && queued + write.size > limit) {
+				queue.wait();
+			}
+			queue.add(write);
+			queued += write.size;
+			queue.notifyAll();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			List<Write> batch;
+			synchronized (queue) {
+				while (queue.isEmpty() && !closed) {
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (queue.isEmpty()) {
+					return;
+				}
+				batch = new ArrayList<Write>(queue);
+				queue.clear();
+			}
+			write(batch);
+			synchronized (queue) {
+				for (Write write : batch) {
+					queued -= write.size;
+				}
+				queue.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Write and sync a batch of images
+	 * 
+	 * @param batch
+	 *            The images
+	 */
+	private void write(List<Write> batch) {
+		List<LocalArchive.Entry> stored = new ArrayList<LocalArchive.Entry>(batch.size());
+		for (Write write : batch) {
+			try {
+				byte[] data = write.data != null ? write.data : ImageUtil.toByteArray(write.image);
+				stored.add(archive.store(data, write.name, write.url));
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unable to save a local copy of " + write.url, e);
+			}
+		}
+		try {
+			archive.sync(stored);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Unable to sync the local copies", e);
+		}
+	}
+
+	/**
+	 * Write everything still queued, then stop the writer thread
+	 * 
+	 * @param timeout
+	 *            The most time to wait for the queue to be written, in
+	 *            milliseconds
+	 */
+	public void shutdown(long timeout) {
+		synchronized (queue) {
+			closed = true;
+			queue.notifyAll();
+		}
+		try {
+			thread.join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * An image waiting to be written
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class Write {
+
+		/**
+		 * The encoded image, or null if it still needs encoding
+		 */
+		private final byte[] data;
+
+		/**
+		 * The image to encode if it hasn't been encoded
+		 */
+		private final BufferedImage image;
+
+		/**
+		 * The file name
+		 */
+		private final String name;
+
+		/**
+		 * The URL the image was uploaded to
+		 */
+		private final String url;
+
+		/**
+		 * The bytes this write holds in memory
+		 */
+		private final long size;
+
+		/**
+		 * Construct a new write, keeping a reference to the image since the
+		 * upload releases its own once it has completed
+		 * 
+		 * @param upload
+		 *            The uploaded image
+		 * @param name
+		 *            The file name
+		 * @param url
+		 *            The URL
+		 */
+		public Write(ImageUpload upload, String name, String url) {
+			this.data = upload.getCachedData();
+			this.image = data == null ? upload.getImage() : null;
+			this.name = name;
+			this.url = url;
+			this.size = data != null ? data.length : (long) image.getWidth() * image.getHeight() * 4;
+		}
+	}
+}
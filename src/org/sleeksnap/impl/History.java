@@ -17,16 +17,29 @@
  */
 package org.sleeksnap.impl;
 
+import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.json.JSONException;
 
@@ -42,12 +55,34 @@ import com.google.gson.JsonSerializer;
 import com.google.gson.reflect.TypeToken;
 
 /**
- * A basic history manager loading and saving to YAML
+ * A history manager keeping an append only journal of JSON lines, one entry
+ * per line. Adding an entry appends and syncs a single line rather than
+ * rewriting the file, so a crash can at most cut off the line being written,
+ * which is truncated on the next load.
+ * 
+ * The entries are held in a HistoryStore, so readers work on immutable
+ * snapshots and never block uploads adding entries. Loading only finds where
+ * each line starts; entries are parsed a page at a time as they are used.
  * 
  * @author Nikki
  * 
  */
 public class History {
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(History.class.getName());
+
+	/**
+	 * The size of the buffer the journal is scanned through
+	 */
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The charset of the journal
+	 */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
 	
 	/**
 	 * The History Gson instance. It is different because we need a different Date serializer to keep the old history files working.
@@ -57,18 +92,33 @@ public class History {
 	/**
 	 * The history storage class
 	 */
-	private List<HistoryEntry> history = new LinkedList<HistoryEntry>();
+	private HistoryStore history = new HistoryStore();
 
 	/**
-	 * The file to load/save to
+	 * The lock held while adding entries and writing the journal
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * The journal file
 	 */
 	private File file;
 
+	/**
+	 * The journal opened for appending, or null if it hasn't been opened
+	 */
+	private FileOutputStream output;
+
+	/**
+	 * The writer on top of <code>output</code>
+	 */
+	private Writer writer;
+
 	/**
 	 * Initialize a new instance with the specified file
 	 * 
 	 * @param file
-	 *            The file to use for storage
+	 *            The journal file to use for storage
 	 */
 	public History(File file) {
 		this.file = file;
@@ -101,53 +151,279 @@ public class History {
 	 * @throws JSONException 
 	 */
 	public void addEntry(HistoryEntry entry, boolean save) throws IOException {
-		synchronized (history) {
+		synchronized (lock) {
 			history.add(entry);
 			if (save) {
-				save();
+				append(entry);
 			}
 		}
 	}
 
 	/**
-	 * Get the history list
+	 * Get an immutable snapshot of the history, which isn't affected by
+	 * entries added later. Taking a snapshot never waits for an upload.
 	 * 
 	 * @return The list
 	 */
-	public List<HistoryEntry> getHistory() {
-		return history;
+	public HistoryStore.Snapshot getHistory() {
+		return history.snapshot();
 	}
 
 	/**
-	 * Load the history from the specified file
+	 * Load the history from the journal. Only the offset of each line is read
+	 * at first, entries are parsed a page at a time when they are used, and
+	 * the most recent page is read straight away. A line cut off by a crash
+	 * at the end of the journal is truncated.
 	 * 
 	 * @throws IOException
 	 *             If an error occurs reading the file
 	 */
 	public void load() throws IOException {
-		Reader reader = new FileReader(file);
+		long[] offsets = new long[1024];
+		int count = 0;
+		long lineStart = 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(SCAN_BUFFER_SIZE);
+			long position = 0;
+			while (channel.read(buffer, position) > 0) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					if (buffer.get() == '\n') {
+						long lineEnd = position + buffer.position() - 1;
+						if (lineEnd > lineStart) {
+							if (count == offsets.length - 1) {
+								offsets = Arrays.copyOf(offsets, offsets.length * 2);
+							}
+							offsets[count++] = lineStart;
+						}
+						lineStart = lineEnd + 1;
+					}
+				}
+				position += buffer.limit();
+				buffer.clear();
+			}
+			if (lineStart < position) {
+				logger.warning("Discarding an incomplete history entry at the end of the journal");
+				channel.truncate(lineStart);
+			}
+		} finally {
+			raf.close();
+		}
+		// The end of the last line
+		offsets[count] = lineStart;
+		synchronized (lock) {
+			history.reset(count, new JournalLoader(offsets));
+			if (count > 0) {
+				history.snapshot().get(count - 1);
+			}
+		}
+	}
+
+	/**
+	 * Import a history file from older versions, which stored the whole
+	 * history as a JSON array, and write it to the journal. The old file is
+	 * renamed once it has been imported.
+	 * 
+	 * @param legacy
+	 *            The old history file
+	 * @throws IOException
+	 *             If the old file could not be read or the journal written
+	 */
+	public void migrate(File legacy) throws IOException {
+		// Written with the platform charset by FileWriter
+		Reader reader = new FileReader(legacy);
+		List<HistoryEntry> entries;
 		try {
-			history = gson.fromJson(reader, new TypeToken<LinkedList<HistoryEntry>>() { }.getType());
+			entries = gson.fromJson(reader, new TypeToken<LinkedList<HistoryEntry>>() { }.getType());
 		} finally {
 			reader.close();
 		}
+		synchronized (lock) {
+			if (entries != null) {
+				entries.addAll(history.snapshot());
+				history.reset(entries);
+			}
+		}
+		compact();
+		if (!legacy.renameTo(new File(legacy.getParentFile(), legacy.getName() + ".old"))) {
+			logger.warning("Unable to rename the old history file " + legacy);
+		}
 	}
 
 	/**
-	 * Save the history to a file
+	 * Rewrite the journal from the entries in memory. The new journal is
+	 * written beside the old one and moved over it, so the old journal stays
+	 * intact if this fails. Entries added while the bulk of it is written are
+	 * appended before the move.
 	 * 
 	 * @throws IOException
-	 *             If an error occurs saving the file
+	 *             If the journal could not be written
 	 */
-	private void save() throws IOException {
-		Writer writer = new FileWriter(file);
+	public void compact() throws IOException {
+		List<HistoryEntry> snapshot = history.snapshot();
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
 		try {
-			gson.toJson(history, writer);
+			Writer out = new BufferedWriter(new OutputStreamWriter(stream, CHARSET));
+			for (HistoryEntry entry : snapshot) {
+				writeLine(out, entry);
+			}
+			synchronized (lock) {
+				List<HistoryEntry> latest = history.snapshot();
+				for (HistoryEntry entry : latest.subList(snapshot.size(), latest.size())) {
+					writeLine(out, entry);
+				}
+				out.flush();
+				stream.getFD().sync();
+				out.close();
+				closeJournal();
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
 		} finally {
-			writer.close();
+			stream.close();
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Append an entry to the journal and sync it, opening the journal if
+	 * needed. Must be called while holding the lock.
+	 * 
+	 * @param entry
+	 *            The entry
+	 * @throws IOException
+	 *             If the entry could not be written
+	 */
+	private void append(HistoryEntry entry) throws IOException {
+		if (writer == null) {
+			boolean terminated = endsWithNewline();
+			output = new FileOutputStream(file, true);
+			writer = new BufferedWriter(new OutputStreamWriter(output, CHARSET));
+			if (!terminated) {
+				// Keep a line cut off by a crash apart from the new ones
+				writer.write('\n');
+			}
+		}
+		writeLine(writer, entry);
+		writer.flush();
+		output.getFD().sync();
+	}
+
+	/**
+	 * Check whether the journal is empty or ends with a complete line
+	 * 
+	 * @return True if new lines can be appended as they are
+	 * @throws IOException
+	 *             If the journal could not be read
+	 */
+	private boolean endsWithNewline() throws IOException {
+		if (!file.exists() || file.length() == 0) {
+			return true;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write an entry as a line of JSON
+	 * 
+	 * @param out
+	 *            The writer
+	 * @param entry
+	 *            The entry
+	 * @throws IOException
+	 *             If the entry could not be written
+	 */
+	private void writeLine(Writer out, HistoryEntry entry) throws IOException {
+		out.write(gson.toJson(entry));
+		out.write('\n');
+	}
+
+	/**
+	 * Close the journal, it is opened again by the next append
+	 */
+	private void closeJournal() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to close the history journal", e);
+			}
+			writer = null;
+			output = null;
+		}
+	}
+
+	/**
+	 * Close the journal
+	 */
+	public void close() {
+		synchronized (lock) {
+			closeJournal();
 		}
 	}
 	
+	/**
+	 * Reads pages of entries from the journal using the offset of each line
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private class JournalLoader implements HistoryStore.PageLoader {
+
+		/**
+		 * The offset of each line, followed by the end of the last line
+		 */
+		private final long[] offsets;
+
+		/**
+		 * Construct a new loader
+		 * 
+		 * @param offsets
+		 *            The line offsets
+		 */
+		public JournalLoader(long[] offsets) {
+			this.offsets = offsets;
+		}
+
+		@Override
+		public List<HistoryEntry> load(int start, int end) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate((int) (offsets[end] - offsets[start]));
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offsets[start] + buffer.position()) < 0) {
+						throw new EOFException("The history journal is shorter than expected");
+					}
+				}
+			} finally {
+				raf.close();
+			}
+			List<HistoryEntry> entries = new ArrayList<HistoryEntry>(end - start);
+			for (String line : new String(buffer.array(), CHARSET).split("\n")) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				HistoryEntry entry = null;
+				try {
+					entry = gson.fromJson(line, HistoryEntry.class);
+				} catch (JsonParseException e) {
+					logger.log(Level.WARNING, "Unreadable history entry " + line, e);
+				}
+				entries.add(entry != null && entry.getUrl() != null ? entry : null);
+			}
+			return entries;
+		}
+	}
+
 	/**
 	 * A temporary serialization class to work with the old HistoryEntry JSON Files
 	 * 
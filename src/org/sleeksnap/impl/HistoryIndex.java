@@ -0,0 +1,438 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * An inverted index over the history, mapping the words of each entry's URL
+ * and uploader name, and its date at year, month and day resolution, to the
+ * entries containing them. The index catches up with entries added to the
+ * history since it was last used, so it never has to be rebuilt.
+ * 
+ * A search matches entries containing every term of the query. Words match by
+ * prefix so results narrow as each letter is typed, and dates are written as
+ * 2013, 2013-05 or 2013-05-21.
+ * 
+ * Entries are read for indexing without loading them into the history, so
+ * building the index doesn't keep the whole history in memory. Results are
+ * views which only load the entries which are looked at.
+ * 
+ * This class is not thread safe. It can be built on a background thread and
+ * handed to the thread which searches it, such as the event dispatch thread.
+ * 
+ * @author Nikki
+ * 
+ */
+public class HistoryIndex {
+
+	/**
+	 * Splits text into words
+	 */
+	private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	/**
+	 * Matches a date term
+	 */
+	private static final Pattern DATE = Pattern.compile("\\d{4}(-\\d{2}(-\\d{2})?)?");
+
+	/**
+	 * The prefix of date keys, keeping them apart from words
+	 */
+	private static final char DATE_PREFIX = '@';
+
+	/**
+	 * The history being indexed
+	 */
+	private History history;
+
+	/**
+	 * The snapshot of the history the index was last updated from
+	 */
+	private HistoryStore.Snapshot entries;
+
+	/**
+	 * The number of entries indexed
+	 */
+	private int indexed;
+
+	/**
+	 * The entries containing each word or date
+	 */
+	private Map<String, Postings> postings = new HashMap<String, Postings>();
+
+	/**
+	 * Every indexed word in order, used to find the words starting with a
+	 * prefix
+	 */
+	private TreeSet<String> words = new TreeSet<String>();
+
+	/**
+	 * Used to split dates into fields
+	 */
+	private Calendar calendar = Calendar.getInstance();
+
+	/**
+	 * The start and end of the day the date keys were last worked out for.
+	 * Entries are mostly added in date order, so most reuse the keys of the
+	 * entry before them.
+	 */
+	private long dayStart = 0, dayEnd = 0;
+
+	/**
+	 * The date keys of the last day worked out, year first
+	 */
+	private String[] dayKeys;
+
+	/**
+	 * Construct a new index
+	 * 
+	 * @param history
+	 *            The history to index
+	 */
+	public HistoryIndex(History history) {
+		this.history = history;
+		this.entries = history.getHistory();
+	}
+
+	/**
+	 * Index the entries added since the index was last updated, a page at a
+	 * time
+	 */
+	public void update() {
+		HistoryStore.Snapshot snapshot = history.getHistory();
+		while (indexed < snapshot.size()) {
+			int end = Math.min((indexed / HistoryStore.PAGE_SIZE + 1) * HistoryStore.PAGE_SIZE, snapshot.size());
+			for (HistoryEntry entry : snapshot.read(indexed, end)) {
+				index(indexed++, entry);
+			}
+		}
+		entries = snapshot;
+	}
+
+	/**
+	 * Find the entries matching a query, bringing the index up to date first
+	 * 
+	 * @param query
+	 *            The query, every term of which must match
+	 * @return The matching entries, newest first
+	 */
+	public List<HistoryEntry> search(String query) {
+		update();
+		BitSet matches = null;
+		for (String term : query.trim().toLowerCase(Locale.ENGLISH).split("\\s+")) {
+			if (term.isEmpty()) {
+				continue;
+			}
+			BitSet found = findWords(term);
+			if (DATE.matcher(term).matches()) {
+				// A date can also be part of a link, such as a file name
+				BitSet dates = find(DATE_PREFIX + term, false);
+				if (found != null) {
+					dates.or(found);
+				}
+				found = dates;
+			}
+			if (found != null) {
+				matches = intersect(matches, found);
+			}
+		}
+		if (matches == null) {
+			return new Results(entries, null, indexed);
+		}
+		int[] ids = new int[matches.cardinality()];
+		int count = 0;
+		for (int id = matches.previousSetBit(indexed - 1); id >= 0; id = matches.previousSetBit(id - 1)) {
+			ids[count++] = id;
+		}
+		return new Results(entries, ids, count);
+	}
+
+	/**
+	 * Get the entries containing every word of a term
+	 * 
+	 * @param term
+	 *            The term
+	 * @return The entries, or null if the term has no words
+	 */
+	private BitSet findWords(String term) {
+		BitSet matches = null;
+		for (String word : SEPARATORS.split(term)) {
+			if (!word.isEmpty()) {
+				matches = intersect(matches, find(word, true));
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Get the entries containing a key
+	 * 
+	 * @param key
+	 *            The key
+	 * @param prefix
+	 *            Whether keys starting with the key also match
+	 * @return The entries
+	 */
+	private BitSet find(String key, boolean prefix) {
+		BitSet set = new BitSet(indexed);
+		if (prefix) {
+			for (String word : words.subSet(key, key + Character.MAX_VALUE)) {
+				postings.get(word).addTo(set);
+			}
+		} else {
+			Postings list = postings.get(key);
+			if (list != null) {
+				list.addTo(set);
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * Intersect the matches so far with the matches of another term
+	 * 
+	 * @param matches
+	 *            The matches so far, or null if there were no terms yet
+	 * @param term
+	 *            The matches of the term
+	 * @return The intersection
+	 */
+	private static BitSet intersect(BitSet matches, BitSet term) {
+		if (matches == null) {
+			return term;
+		}
+		matches.and(term);
+		return matches;
+	}
+
+	/**
+	 * Add an entry to the index
+	 * 
+	 * @param id
+	 *            The position of the entry in the history
+	 * @param entry
+	 *            The entry
+	 */
+	private void index(int id, HistoryEntry entry) {
+		addWords(id, entry.getUrl());
+		addWords(id, entry.getUploader());
+		if (entry.getDate() != null) {
+			for (String key : getDateKeys(entry.getDate().getTime())) {
+				add(key, id);
+			}
+		}
+	}
+
+	/**
+	 * Get the year, month and day keys of a date
+	 * 
+	 * @param time
+	 *            The date in milliseconds
+	 * @return The keys
+	 */
+	private String[] getDateKeys(long time) {
+		if (time < dayStart || time >= dayEnd) {
+			calendar.setTimeInMillis(time);
+			String year = String.valueOf(calendar.get(Calendar.YEAR));
+			String month = year + '-' + pad(calendar.get(Calendar.MONTH) + 1);
+			String day = month + '-' + pad(calendar.get(Calendar.DAY_OF_MONTH));
+			dayKeys = new String[] { DATE_PREFIX + year, DATE_PREFIX + month, DATE_PREFIX + day };
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MILLISECOND, 0);
+			dayStart = calendar.getTimeInMillis();
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+			dayEnd = calendar.getTimeInMillis();
+		}
+		return dayKeys;
+	}
+
+	/**
+	 * Add the words of some text to the index
+	 * 
+	 * @param id
+	 *            The entry id
+	 * @param text
+	 *            The text, or null
+	 */
+	private void addWords(int id, String text) {
+		if (text == null) {
+			return;
+		}
+		text = text.toLowerCase(Locale.ENGLISH);
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			if (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+				if (start < 0) {
+					start = i;
+				}
+			} else if (start >= 0) {
+				String word = text.substring(start, i);
+				if (add(word, id)) {
+					words.add(word);
+				}
+				start = -1;
+			}
+		}
+	}
+
+	/**
+	 * Add an entry to the postings of a key
+	 * 
+	 * @param key
+	 *            The key
+	 * @param id
+	 *            The entry id
+	 * @return True if the key is new to the index
+	 */
+	private boolean add(String key, int id) {
+		Postings list = postings.get(key);
+		boolean created = list == null;
+		if (created) {
+			postings.put(key, list = new Postings());
+		}
+		list.add(id);
+		return created;
+	}
+
+	/**
+	 * Pad a date field to two digits
+	 * 
+	 * @param value
+	 *            The value
+	 * @return The padded value
+	 */
+	private static String pad(int value) {
+		return value < 10 ? "0" + value : String.valueOf(value);
+	}
+
+	/**
+	 * The results of a search, newest first, which only reads the entries
+	 * which are asked for
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class Results extends AbstractList<HistoryEntry> implements RandomAccess {
+
+		/**
+		 * The history the ids refer to
+		 */
+		private final List<HistoryEntry> entries;
+
+		/**
+		 * The ids of the matching entries, or null if every entry matched
+		 */
+		private final int[] ids;
+
+		/**
+		 * The number of results
+		 */
+		private final int size;
+
+		/**
+		 * Construct new results
+		 * 
+		 * @param entries
+		 *            The history the ids refer to
+		 * @param ids
+		 *            The ids of the matching entries, newest first, or null
+		 *            if every entry matched
+		 * @param size
+		 *            The number of results
+		 */
+		public Results(List<HistoryEntry> entries, int[] ids, int size) {
+			this.entries = entries;
+			this.ids = ids;
+			this.size = size;
+		}
+
+		@Override
+		public HistoryEntry get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			return entries.get(ids != null ? ids[index] : size - 1 - index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * The ascending ids of the entries containing a key
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class Postings {
+
+		/**
+		 * The ids
+		 */
+		private int[] ids = new int[2];
+
+		/**
+		 * The number of ids
+		 */
+		private int size;
+
+		/**
+		 * Add an id, ignoring repeats of the last one
+		 * 
+		 * @param id
+		 *            The id
+		 */
+		public void add(int id) {
+			if (size > 0 && ids[size - 1] == id) {
+				return;
+			}
+			if (size == ids.length) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(ids, 0, grown, 0, size);
+				ids = grown;
+			}
+			ids[size++] = id;
+		}
+
+		/**
+		 * Set the bits of every id
+		 * 
+		 * @param set
+		 *            The set
+		 */
+		public void addTo(BitSet set) {
+			for (int i = 0; i < size; i++) {
+				set.set(ids[i]);
+			}
+		}
+	}
+}
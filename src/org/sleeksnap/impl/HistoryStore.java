@@ -0,0 +1,394 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append only list of history entries which readers see through immutable
+ * snapshots. Entries are kept in fixed size chunks which are never moved, so
+ * adding an entry writes one slot past the end of every published snapshot
+ * and publishes a new snapshot with a volatile write. Readers never take a
+ * lock and never see an entry change under them, and adding an entry doesn't
+ * wait for readers or copy the existing entries.
+ * 
+ * Entries which are already on disk can be left unloaded. Each chunk is then
+ * a page which is read with a PageLoader the first time one of its entries is
+ * asked for. Pages are read without holding the lock, so a reader waiting on
+ * the disk never holds up an upload adding an entry. Only the most recently
+ * loaded pages are kept, older ones are dropped and read again if they are
+ * needed, so reading through the history doesn't leave all of it in memory.
+ * An entry read again is equal to the one dropped, but not the same object.
+ * 
+ * @author Nikki
+ * 
+ */
+public class HistoryStore {
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(HistoryStore.class.getName());
+
+	/**
+	 * The number of bits of an index which select the slot within a chunk
+	 */
+	private static final int CHUNK_BITS = 10;
+
+	/**
+	 * The number of entries in a chunk, which is also the number of entries
+	 * loaded at once
+	 */
+	public static final int PAGE_SIZE = 1 << CHUNK_BITS;
+
+	/**
+	 * The mask selecting the slot within a chunk
+	 */
+	private static final int CHUNK_MASK = PAGE_SIZE - 1;
+
+	/**
+	 * The most pages read from disk which are kept in memory
+	 */
+	public static final int MAX_LOADED_PAGES = 16;
+
+	/**
+	 * Reads pages of entries which haven't been loaded
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	public static interface PageLoader {
+
+		/**
+		 * Read a range of entries
+		 * 
+		 * @param start
+		 *            The index of the first entry
+		 * @param end
+		 *            The index after the last entry
+		 * @return The entries, with null for any which couldn't be read
+		 * @throws IOException
+		 *             If the entries could not be read
+		 */
+		public List<HistoryEntry> load(int start, int end) throws IOException;
+	}
+
+	/**
+	 * The latest snapshot
+	 */
+	private volatile Snapshot current = new Snapshot(this, newDirectory(0), 0, null, 0);
+
+	/**
+	 * The pages read from disk, oldest first, mapped to the number of their
+	 * entries which are on disk
+	 */
+	private final Map<AtomicReferenceArray<HistoryEntry>, Integer> loaded = new LinkedHashMap<AtomicReferenceArray<HistoryEntry>, Integer>();
+
+	/**
+	 * Get an immutable view of the entries added so far
+	 * 
+	 * @return The snapshot
+	 */
+	public Snapshot snapshot() {
+		return current;
+	}
+
+	/**
+	 * Add an entry to the end
+	 * 
+	 * @param entry
+	 *            The entry
+	 */
+	public synchronized void add(HistoryEntry entry) {
+		Snapshot snapshot = current;
+		AtomicReferenceArray<HistoryEntry>[] chunks = snapshot.chunks;
+		int size = snapshot.size;
+		int chunk = size >>> CHUNK_BITS;
+		if (chunk == chunks.length) {
+			// Only the chunk directory is copied, the chunks are shared
+			chunks = Arrays.copyOf(chunks, Math.max(4, chunks.length * 2));
+		}
+		if (chunks[chunk] == null) {
+			chunks[chunk] = new AtomicReferenceArray<HistoryEntry>(PAGE_SIZE);
+		}
+		chunks[chunk].set(size & CHUNK_MASK, entry);
+		current = new Snapshot(this, chunks, size + 1, snapshot.loader, snapshot.stored);
+	}
+
+	/**
+	 * Replace every entry
+	 * 
+	 * @param entries
+	 *            The new entries
+	 */
+	public synchronized void reset(Collection<HistoryEntry> entries) {
+		AtomicReferenceArray<HistoryEntry>[] chunks = allocate(entries.size());
+		int size = 0;
+		for (HistoryEntry entry : entries) {
+			chunks[size >>> CHUNK_BITS].set(size & CHUNK_MASK, entry);
+			size++;
+		}
+		current = new Snapshot(this, chunks, size, null, 0);
+		synchronized (loaded) {
+			loaded.clear();
+		}
+	}
+
+	/**
+	 * Replace every entry with entries which are on disk, to be loaded a page
+	 * at a time as they are used
+	 * 
+	 * @param size
+	 *            The number of entries
+	 * @param loader
+	 *            The loader which reads them
+	 */
+	public synchronized void reset(int size, PageLoader loader) {
+		current = new Snapshot(this, allocate(size), size, loader, size);
+		synchronized (loaded) {
+			loaded.clear();
+		}
+	}
+
+	/**
+	 * Load the page holding an entry. Two readers may read the same page at
+	 * once, only the entries of the first to finish are kept.
+	 * 
+	 * @param snapshot
+	 *            The snapshot the entry was asked for through
+	 * @param chunk
+	 *            The chunk of the entry
+	 * @param index
+	 *            The index of the entry
+	 * @return The entry
+	 */
+	private HistoryEntry load(Snapshot snapshot, AtomicReferenceArray<HistoryEntry> chunk, int index) {
+		int start = index & ~CHUNK_MASK;
+		List<HistoryEntry> page = readPage(snapshot, start);
+		for (int i = 0; i < page.size(); i++) {
+			chunk.compareAndSet(i, null, page.get(i));
+		}
+		loaded(chunk, page.size());
+		return page.get(index - start);
+	}
+
+	/**
+	 * Record that a page has been read from disk, dropping the entries of the
+	 * oldest page if too many are loaded
+	 * 
+	 * @param chunk
+	 *            The chunk of the page
+	 * @param stored
+	 *            The number of its entries which are on disk
+	 */
+	private void loaded(AtomicReferenceArray<HistoryEntry> chunk, int stored) {
+		AtomicReferenceArray<HistoryEntry> evicted = null;
+		int end = 0;
+		synchronized (loaded) {
+			loaded.remove(chunk);
+			loaded.put(chunk, stored);
+			if (loaded.size() > MAX_LOADED_PAGES) {
+				Iterator<Map.Entry<AtomicReferenceArray<HistoryEntry>, Integer>> it = loaded.entrySet().iterator();
+				Map.Entry<AtomicReferenceArray<HistoryEntry>, Integer> oldest = it.next();
+				it.remove();
+				evicted = oldest.getKey();
+				end = oldest.getValue();
+			}
+		}
+		if (evicted != null) {
+			// Only the entries on disk, those added since are kept
+			for (int i = 0; i < end; i++) {
+				evicted.set(i, null);
+			}
+		}
+	}
+
+	/**
+	 * Read a page of entries from disk without loading it into the store
+	 * 
+	 * @param snapshot
+	 *            The snapshot the page is read through
+	 * @param start
+	 *            The index of the first entry of the page
+	 * @return The entries on disk in the page, with a blank entry for each one
+	 *         which couldn't be read
+	 */
+	private static List<HistoryEntry> readPage(Snapshot snapshot, int start) {
+		int end = Math.min(start + PAGE_SIZE, snapshot.stored);
+		List<HistoryEntry> page = null;
+		try {
+			page = snapshot.loader.load(start, end);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Unable to load history entries " + start + " to " + end, e);
+		}
+		List<HistoryEntry> entries = new ArrayList<HistoryEntry>(end - start);
+		for (int i = start; i < end; i++) {
+			HistoryEntry entry = page != null && i - start < page.size() ? page.get(i - start) : null;
+			if (entry == null) {
+				// Readers need an entry, show it as blank
+				entry = new HistoryEntry("", "", new Date(0));
+			}
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * Allocate the chunks for a number of entries
+	 * 
+	 * @param size
+	 *            The number of entries
+	 * @return The chunk directory
+	 */
+	private static AtomicReferenceArray<HistoryEntry>[] allocate(int size) {
+		int count = (size + PAGE_SIZE - 1) >>> CHUNK_BITS;
+		AtomicReferenceArray<HistoryEntry>[] chunks = newDirectory(Math.max(4, count));
+		for (int i = 0; i < count; i++) {
+			chunks[i] = new AtomicReferenceArray<HistoryEntry>(PAGE_SIZE);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Create an empty chunk directory
+	 * 
+	 * @param length
+	 *            The number of chunks it can hold
+	 * @return The directory
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static AtomicReferenceArray<HistoryEntry>[] newDirectory(int length) {
+		return new AtomicReferenceArray[length];
+	}
+
+	/**
+	 * An immutable view of the entries at one point in time
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	public static class Snapshot extends AbstractList<HistoryEntry> implements RandomAccess {
+
+		/**
+		 * The store, which loads pages
+		 */
+		private final HistoryStore store;
+
+		/**
+		 * The chunks, shared with the store and later snapshots
+		 */
+		private final AtomicReferenceArray<HistoryEntry>[] chunks;
+
+		/**
+		 * The number of entries visible in this snapshot
+		 */
+		private final int size;
+
+		/**
+		 * The loader of the entries which are on disk, or null
+		 */
+		private final PageLoader loader;
+
+		/**
+		 * The number of entries which can be read with the loader
+		 */
+		private final int stored;
+
+		/**
+		 * Construct a new snapshot
+		 * 
+		 * @param store
+		 *            The store
+		 * @param chunks
+		 *            The chunks
+		 * @param size
+		 *            The number of entries
+		 * @param loader
+		 *            The loader of the entries on disk, or null
+		 * @param stored
+		 *            The number of entries on disk
+		 */
+		private Snapshot(HistoryStore store, AtomicReferenceArray<HistoryEntry>[] chunks, int size, PageLoader loader, int stored) {
+			this.store = store;
+			this.chunks = chunks;
+			this.size = size;
+			this.loader = loader;
+			this.stored = stored;
+		}
+
+		@Override
+		public HistoryEntry get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			AtomicReferenceArray<HistoryEntry> chunk = chunks[index >>> CHUNK_BITS];
+			HistoryEntry entry = chunk.get(index & CHUNK_MASK);
+			return entry != null ? entry : store.load(this, chunk, index);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Read a range of entries without loading the pages they are in, for
+		 * readers which go through every entry once, such as an indexer. The
+		 * entries already in memory are used as they are.
+		 * 
+		 * @param start
+		 *            The index of the first entry
+		 * @param end
+		 *            The index after the last entry
+		 * @return The entries
+		 */
+		public List<HistoryEntry> read(int start, int end) {
+			if (start < 0 || end > size || start > end) {
+				throw new IndexOutOfBoundsException("Range: " + start + " to " + end + ", Size: " + size);
+			}
+			List<HistoryEntry> entries = new ArrayList<HistoryEntry>(end - start);
+			List<HistoryEntry> page = null;
+			int pageStart = -1;
+			for (int i = start; i < end; i++) {
+				HistoryEntry entry = chunks[i >>> CHUNK_BITS].get(i & CHUNK_MASK);
+				if (entry == null) {
+					if (pageStart != (i & ~CHUNK_MASK)) {
+						pageStart = i & ~CHUNK_MASK;
+						page = readPage(this, pageStart);
+					}
+					entry = page.get(i - pageStart);
+				}
+				entries.add(entry);
+			}
+			return entries;
+		}
+	}
+}
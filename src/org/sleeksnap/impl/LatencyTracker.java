@@ -0,0 +1,131 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sleeksnap.uploaders.Uploader;
+
+/**
+ * Keeps a rolling window of recent upload times for each uploader, used to
+ * decide how long an upload may run before it is considered slow.
+ * 
+ * Uploads which were stopped or timed out are recorded with the time they ran
+ * for, which is less than they would have taken. Dropping them instead would
+ * keep only the fast uploads and make a slow host look fast.
+ * 
+ * @author Nikki
+ * 
+ */
+public class LatencyTracker {
+
+	/**
+	 * The number of samples kept for each uploader
+	 */
+	private static final int WINDOW_SIZE = 100;
+
+	/**
+	 * The number of samples required before the window is trusted
+	 */
+	private static final int MINIMUM_SAMPLES = 10;
+
+	/**
+	 * The sample windows, mapped by uploader class name
+	 */
+	private Map<String, Window> windows = new HashMap<String, Window>();
+
+	/**
+	 * Record a completed upload, or one which was stopped before it completed
+	 * 
+	 * @param uploader
+	 *            The uploader which ran the upload
+	 * @param millis
+	 *            The time it took, or ran for before it was stopped, in
+	 *            milliseconds
+	 */
+	public synchronized void record(Uploader<?> uploader, long millis) {
+		String key = uploader.getClass().getName();
+		Window window = windows.get(key);
+		if (window == null) {
+			windows.put(key, window = new Window());
+		}
+		window.add(millis);
+	}
+
+	/**
+	 * Get a percentile of the recent upload times for an uploader
+	 * 
+	 * @param uploader
+	 *            The uploader
+	 * @param percentile
+	 *            The percentile, from 0 to 1
+	 * @param defaultValue
+	 *            The value to use if not enough uploads have been recorded
+	 * @return The percentile in milliseconds, or the default value
+	 */
+	public synchronized long getPercentile(Uploader<?> uploader, double percentile, long defaultValue) {
+		Window window = windows.get(uploader.getClass().getName());
+		if (window == null || window.count < MINIMUM_SAMPLES) {
+			return defaultValue;
+		}
+		long[] sorted = Arrays.copyOf(window.samples, window.count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	/**
+	 * A fixed size ring of samples
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class Window {
+
+		/**
+		 * The samples
+		 */
+		private long[] samples = new long[WINDOW_SIZE];
+
+		/**
+		 * The number of valid samples
+		 */
+		private int count;
+
+		/**
+		 * The next index to write to
+		 */
+		private int position;
+
+		/**
+		 * Add a sample, replacing the oldest if the window is full
+		 * 
+		 * @param value
+		 *            The sample
+		 */
+		public void add(long value) {
+			samples[position] = value;
+			position = (position + 1) % samples.length;
+			if (count < samples.length) {
+				count++;
+			}
+		}
+	}
+}
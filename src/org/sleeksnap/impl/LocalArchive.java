@@ -0,0 +1,592 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.sleeksnap.util.Util;
+
+/**
+ * A content addressed store for local copies of uploads. Each file is named by
+ * the SHA-256 of its contents and kept in a directory sharded by the first two
+ * bytes of the hash, so no directory grows too large to list. Identical files
+ * are only stored once.
+ * 
+ * The name, date and URL of every file are kept in an append only index which
+ * is read into memory once, so lookups by hash and enumeration don't touch the
+ * disk. Updated entries are appended again, and the index is compacted when it
+ * is loaded if most of its records have been superseded.
+ * 
+ * @author Nikki
+ * 
+ */
+public class LocalArchive {
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(LocalArchive.class.getName());
+
+	/**
+	 * The identifier at the start of the index file
+	 */
+	private static final int INDEX_MAGIC = 0x534e4158;
+
+	/**
+	 * The version of the index format
+	 */
+	private static final int INDEX_VERSION = 1;
+
+	/**
+	 * The length of a hash in bytes
+	 */
+	private static final int HASH_LENGTH = 32;
+
+	/**
+	 * The shared instance, loaded when it is first used
+	 */
+	private static LocalArchive instance;
+
+	/**
+	 * Get the shared archive in the working directory, loading its index if
+	 * it hasn't been loaded yet
+	 * 
+	 * @return The archive
+	 */
+	public static synchronized LocalArchive getInstance() {
+		if (instance == null) {
+			instance = new LocalArchive(new File(Util.getWorkingDirectory(), "archive"));
+			try {
+				instance.load();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to load the archive index, starting a new one", e);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * The archive directory
+	 */
+	private File directory;
+
+	/**
+	 * The index file
+	 */
+	private File indexFile;
+
+	/**
+	 * The entries by hash, in the order they were first stored
+	 */
+	private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	/**
+	 * The index file opened for appending
+	 */
+	private FileOutputStream index;
+
+	/**
+	 * Construct a new archive
+	 * 
+	 * @param directory
+	 *            The directory to keep the files and index in
+	 */
+	public LocalArchive(File directory) {
+		this.directory = directory;
+		this.indexFile = new File(directory, "index.dat");
+	}
+
+	/**
+	 * Read the index into memory, compacting it if at least as many of its
+	 * records have been superseded as are still in use. A record cut short by
+	 * a crash ends the index.
+	 * 
+	 * @throws IOException
+	 *             If the index could not be read
+	 */
+	public synchronized void load() throws IOException {
+		entries.clear();
+		if (!indexFile.exists()) {
+			return;
+		}
+		long length = indexFile.length();
+		long end = 0;
+		int records = 0;
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) {
+				throw new IOException("Unknown archive index format");
+			}
+			end = length - input.available();
+			while (true) {
+				Entry entry;
+				try {
+					entry = readEntry(input);
+				} catch (EOFException e) {
+					break;
+				}
+				entries.put(entry.hash, entry);
+				records++;
+				end = length - input.available();
+			}
+		} finally {
+			input.close();
+		}
+		if (end < length) {
+			logger.warning("Discarding an incomplete record at the end of the archive index");
+		}
+		int superseded = records - entries.size();
+		if (end < length || superseded > 0 && superseded >= entries.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Store a file in the archive and sync it to disk
+	 * 
+	 * @param data
+	 *            The contents of the file
+	 * @param name
+	 *            The name of the file, its extension is kept
+	 * @return The entry of the stored file
+	 * @throws IOException
+	 *             If the file could not be written
+	 */
+	public Entry store(byte[] data, String name) throws IOException {
+		Entry entry = store(data, name, null);
+		sync(Collections.singletonList(entry));
+		return entry;
+	}
+
+	/**
+	 * Store a file in the archive without waiting for it to reach the disk,
+	 * so that several files can be synced at once with <code>sync</code>. The
+	 * file is written to a temporary file and moved into place, so a partial
+	 * file is never stored under its hash.
+	 * 
+	 * @param data
+	 *            The contents of the file
+	 * @param name
+	 *            The name of the file, its extension is kept
+	 * @param url
+	 *            The URL the file was uploaded to, or null
+	 * @return The entry of the stored file
+	 * @throws IOException
+	 *             If the file could not be written
+	 */
+	public Entry store(byte[] data, String name, String url) throws IOException {
+		String hash = hash(data);
+		Entry existing = get(hash);
+		if (existing != null && getFile(existing).length() == data.length) {
+			if (url != null && !url.equals(existing.url)) {
+				setUrl(hash, url);
+				return get(hash);
+			}
+			return existing;
+		}
+		Entry entry = new Entry(hash, name, System.currentTimeMillis(), url != null ? url : existing != null ? existing.url : null);
+		File file = getFile(entry);
+		File shard = file.getParentFile();
+		if (!shard.exists() && !shard.mkdirs()) {
+			throw new IOException("Unable to create " + shard);
+		}
+		File temp = File.createTempFile(hash, ".tmp", shard);
+		try {
+			FileOutputStream output = new FileOutputStream(temp);
+			try {
+				output.write(data);
+			} finally {
+				output.close();
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				// Some platforms won't replace a file stored at the same time
+				if (!file.exists()) {
+					throw e;
+				}
+			}
+		} finally {
+			temp.delete();
+		}
+		put(entry);
+		return entry;
+	}
+
+	/**
+	 * Force stored files and the index to the disk. Syncing a batch together
+	 * lets the file system commit them in one go instead of once per file.
+	 * 
+	 * @param stored
+	 *            The entries of the files to sync
+	 * @throws IOException
+	 *             If a file could not be synced
+	 */
+	public void sync(Collection<Entry> stored) throws IOException {
+		for (Entry entry : stored) {
+			FileChannel channel = FileChannel.open(getFile(entry).toPath(), StandardOpenOption.WRITE);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		}
+		synchronized (this) {
+			if (index != null) {
+				index.getFD().sync();
+			}
+		}
+	}
+
+	/**
+	 * Set the URL a stored file was uploaded to. This appends a record to the
+	 * index without syncing it, prefer passing the URL to <code>store</code>
+	 * when it is known up front.
+	 * 
+	 * @param hash
+	 *            The hash of the file
+	 * @param url
+	 *            The URL
+	 * @throws IOException
+	 *             If the index could not be written
+	 */
+	public synchronized void setUrl(String hash, String url) throws IOException {
+		Entry entry = entries.get(hash);
+		if (entry == null) {
+			throw new IllegalArgumentException("No archived file with the hash " + hash);
+		}
+		put(new Entry(entry.hash, entry.name, entry.date, url));
+	}
+
+	/**
+	 * Get the entry of a stored file
+	 * 
+	 * @param hash
+	 *            The hash of the file
+	 * @return The entry, or null if there is no file with the hash
+	 */
+	public synchronized Entry get(String hash) {
+		return entries.get(hash);
+	}
+
+	/**
+	 * Get every entry, in the order the files were stored
+	 * 
+	 * @return A snapshot of the entries
+	 */
+	public synchronized List<Entry> getEntries() {
+		return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+	}
+
+	/**
+	 * Get the file an entry is stored in
+	 * 
+	 * @param entry
+	 *            The entry
+	 * @return The file
+	 */
+	public File getFile(Entry entry) {
+		return getFile(entry.hash, entry.name);
+	}
+
+	/**
+	 * Get the file contents with a hash will be stored in, which is where they
+	 * already are if they were stored before under another name
+	 * 
+	 * @param hash
+	 *            The hash of the contents
+	 * @param name
+	 *            The name they will be stored under
+	 * @return The file
+	 */
+	public File getStoredFile(String hash, String name) {
+		Entry existing = get(hash);
+		return getFile(hash, existing != null ? existing.name : name);
+	}
+
+	/**
+	 * Get the file contents are stored in
+	 * 
+	 * @param hash
+	 *            The hash of the contents
+	 * @param name
+	 *            The name they are stored under, its extension is kept
+	 * @return The file
+	 */
+	private File getFile(String hash, String name) {
+		String file = hash;
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0) {
+			file += name.substring(dot);
+		}
+		File objects = new File(directory, "objects");
+		return new File(new File(new File(objects, hash.substring(0, 2)), hash.substring(2, 4)), file);
+	}
+
+	/**
+	 * Close the index file
+	 */
+	public synchronized void close() {
+		if (index != null) {
+			try {
+				index.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to close the archive index", e);
+			}
+			index = null;
+		}
+	}
+
+	/**
+	 * Add or replace an entry, appending it to the index
+	 * 
+	 * @param entry
+	 *            The entry
+	 * @throws IOException
+	 *             If the index could not be written
+	 */
+	private synchronized void put(Entry entry) throws IOException {
+		if (index == null) {
+			boolean created = !indexFile.exists();
+			if (created && !directory.exists()) {
+				directory.mkdirs();
+			}
+			index = new FileOutputStream(indexFile, true);
+			if (created) {
+				index.write(header());
+			}
+		}
+		// Written with a single call so a record is never interleaved
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		writeEntry(new DataOutputStream(record), entry);
+		index.write(record.toByteArray());
+		index.flush();
+		entries.put(entry.hash, entry);
+	}
+
+	/**
+	 * Rewrite the index with only the current entries, replacing the old one
+	 * atomically
+	 * 
+	 * @throws IOException
+	 *             If the index could not be written
+	 */
+	private synchronized void compact() throws IOException {
+		close();
+		File temp = new File(directory, "index.dat.tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			output.write(header());
+			for (Entry entry : entries.values()) {
+				writeEntry(output, entry);
+			}
+		} finally {
+			output.close();
+		}
+		Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Get the header of a new index file
+	 * 
+	 * @return The header bytes
+	 * @throws IOException
+	 *             Never
+	 */
+	private static byte[] header() throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(header);
+		output.writeInt(INDEX_MAGIC);
+		output.writeInt(INDEX_VERSION);
+		return header.toByteArray();
+	}
+
+	/**
+	 * Read an index record
+	 * 
+	 * @param input
+	 *            The index
+	 * @return The entry
+	 * @throws IOException
+	 *             If the record could not be read
+	 */
+	private static Entry readEntry(DataInputStream input) throws IOException {
+		byte[] hash = new byte[HASH_LENGTH];
+		input.readFully(hash);
+		long date = input.readLong();
+		String name = input.readUTF();
+		String url = input.readUTF();
+		return new Entry(toHex(hash), name, date, url.isEmpty() ? null : url);
+	}
+
+	/**
+	 * Write an index record
+	 * 
+	 * @param output
+	 *            The index
+	 * @param entry
+	 *            The entry
+	 * @throws IOException
+	 *             If the record could not be written
+	 */
+	private static void writeEntry(DataOutputStream output, Entry entry) throws IOException {
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			output.writeByte(Integer.parseInt(entry.hash.substring(i * 2, i * 2 + 2), 16));
+		}
+		output.writeLong(entry.date);
+		output.writeUTF(entry.name);
+		output.writeUTF(entry.url != null ? entry.url : "");
+	}
+
+	/**
+	 * Hash the contents of a file
+	 * 
+	 * @param data
+	 *            The contents
+	 * @return The SHA-256 as hex
+	 */
+	public static String hash(byte[] data) {
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Convert bytes to lower case hex
+	 * 
+	 * @param bytes
+	 *            The bytes
+	 * @return The hex string
+	 */
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * A file in the archive
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	public static class Entry {
+
+		/**
+		 * The SHA-256 of the file as hex
+		 */
+		private final String hash;
+
+		/**
+		 * The name the file was stored with
+		 */
+		private final String name;
+
+		/**
+		 * The time the file was stored
+		 */
+		private final long date;
+
+		/**
+		 * The URL the file was uploaded to, or null
+		 */
+		private final String url;
+
+		/**
+		 * Construct a new entry
+		 * 
+		 * @param hash
+		 *            The hash
+		 * @param name
+		 *            The name
+		 * @param date
+		 *            The time it was stored
+		 * @param url
+		 *            The URL, or null
+		 */
+		public Entry(String hash, String name, long date, String url) {
+			this.hash = hash;
+			this.name = name;
+			this.date = date;
+			this.url = url;
+		}
+
+		/**
+		 * Get the SHA-256 of the file
+		 * 
+		 * @return The hash as hex
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Get the name the file was stored with
+		 * 
+		 * @return The name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the time the file was stored
+		 * 
+		 * @return The time in milliseconds
+		 */
+		public long getDate() {
+			return date;
+		}
+
+		/**
+		 * Get the URL the file was uploaded to
+		 * 
+		 * @return The URL, or null
+		 */
+		public String getUrl() {
+			return url;
+		}
+	}
+}
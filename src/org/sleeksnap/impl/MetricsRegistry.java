@@ -0,0 +1,196 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.sleeksnap.upload.UploadProgress;
+import org.sleeksnap.util.Utils.FormatUtil;
+
+/**
+ * Collects transfer statistics for each uploader
+ * 
+ * @author Nikki
+ * 
+ */
+public class MetricsRegistry {
+
+	/**
+	 * The metrics of each uploader, keyed by name
+	 */
+	private Map<String, Metrics> metrics = new LinkedHashMap<String, Metrics>();
+
+	/**
+	 * Record a finished upload
+	 * 
+	 * @param uploader
+	 *            The uploader name
+	 * @param progress
+	 *            The final progress of the upload
+	 * @param succeeded
+	 *            Whether the upload succeeded
+	 */
+	public synchronized void record(String uploader, UploadProgress progress, boolean succeeded) {
+		Metrics m = metrics.get(uploader);
+		if (m == null) {
+			metrics.put(uploader, m = new Metrics());
+		}
+		if (succeeded) {
+			m.uploads++;
+		} else {
+			m.failures++;
+		}
+		m.bytes += progress.getTransferred();
+		m.time += progress.getElapsed();
+		m.peakRate = Math.max(m.peakRate, progress.getCurrentRate());
+	}
+
+	/**
+	 * Get a copy of the metrics of each uploader
+	 * 
+	 * @return The metrics, keyed by uploader name
+	 */
+	public synchronized Map<String, Metrics> getMetrics() {
+		Map<String, Metrics> copy = new LinkedHashMap<String, Metrics>();
+		for (Map.Entry<String, Metrics> entry : metrics.entrySet()) {
+			copy.put(entry.getKey(), entry.getValue().copy());
+		}
+		return copy;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Metrics> entry : metrics.entrySet()) {
+			if (builder.length() > 0) {
+				builder.append("; ");
+			}
+			builder.append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * The transfer statistics of a single uploader
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	public static class Metrics {
+
+		/**
+		 * The number of successful uploads
+		 */
+		private int uploads;
+
+		/**
+		 * The number of failed uploads
+		 */
+		private int failures;
+
+		/**
+		 * The number of bytes sent
+		 */
+		private long bytes;
+
+		/**
+		 * The time spent uploading, in milliseconds
+		 */
+		private long time;
+
+		/**
+		 * The highest throughput sampled, in bytes per second
+		 */
+		private long peakRate;
+
+		/**
+		 * Get the number of successful uploads
+		 * 
+		 * @return The number of uploads
+		 */
+		public int getUploads() {
+			return uploads;
+		}
+
+		/**
+		 * Get the number of failed uploads
+		 * 
+		 * @return The number of uploads
+		 */
+		public int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * Get the number of bytes sent
+		 * 
+		 * @return The number of bytes
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get the time spent uploading
+		 * 
+		 * @return The time in milliseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Get the average throughput
+		 * 
+		 * @return The throughput in bytes per second
+		 */
+		public long getAverageRate() {
+			return time > 0 ? bytes * 1000 / time : 0;
+		}
+
+		/**
+		 * Get the highest throughput sampled
+		 * 
+		 * @return The throughput in bytes per second
+		 */
+		public long getPeakRate() {
+			return peakRate;
+		}
+
+		/**
+		 * Copy these metrics
+		 * 
+		 * @return The copy
+		 */
+		private Metrics copy() {
+			Metrics m = new Metrics();
+			m.uploads = uploads;
+			m.failures = failures;
+			m.bytes = bytes;
+			m.time = time;
+			m.peakRate = peakRate;
+			return m;
+		}
+
+		@Override
+		public String toString() {
+			return uploads + " uploads, " + failures + " failures, " + FormatUtil.humanReadableByteCount(bytes, true) + " sent at " + FormatUtil.humanReadableByteCount(getAverageRate(), true) + "/s";
+		}
+	}
+}
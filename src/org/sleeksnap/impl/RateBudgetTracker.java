@@ -0,0 +1,158 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sleeksnap.http.RateLimit;
+import org.sleeksnap.uploaders.Uploader;
+
+/**
+ * Tracks the rate limit budget each uploader's server has reported, so that
+ * uploads can be delayed or sent elsewhere before the limit is hit instead of
+ * failing
+ * 
+ * The server only counts an upload once it has been made, so uploads which
+ * are still running are taken from the reported budget as well. Otherwise
+ * every concurrent upload would see the same last request remaining and go.
+ * 
+ * @author Nikki
+ * 
+ */
+public class RateBudgetTracker {
+
+	/**
+	 * The last rate limit reported for each uploader, keyed by class name
+	 */
+	private Map<String, RateLimit> limits = new HashMap<String, RateLimit>();
+
+	/**
+	 * The number of running uploads of each uploader, keyed by class name
+	 */
+	private Map<String, Integer> running = new HashMap<String, Integer>();
+
+	/**
+	 * Record the rate limit reported during an upload
+	 * 
+	 * @param uploader
+	 *            The uploader
+	 * @param limit
+	 *            The rate limit
+	 */
+	public synchronized void update(Uploader<?> uploader, RateLimit limit) {
+		limits.put(uploader.getClass().getName(), limit);
+	}
+
+	/**
+	 * Get the rate limit last reported for an uploader
+	 * 
+	 * @param uploader
+	 *            The uploader
+	 * @return The rate limit, or null if none has been reported
+	 */
+	public synchronized RateLimit getLimit(Uploader<?> uploader) {
+		return limits.get(uploader.getClass().getName());
+	}
+
+	/**
+	 * Get the time until an uploader has budget to upload again
+	 * 
+	 * @param uploader
+	 *            The uploader
+	 * @param reserve
+	 *            The number of requests kept in reserve, the uploader is out
+	 *            of budget once this many or fewer remain
+	 * @return The time in milliseconds, or 0 if it can upload now
+	 */
+	public synchronized long getDelay(Uploader<?> uploader, int reserve) {
+		return getDelay(uploader.getClass().getName(), reserve);
+	}
+
+	/**
+	 * Take a request from an uploader's budget for an upload which is about
+	 * to start, if there is one left
+	 * 
+	 * @param uploader
+	 *            The uploader
+	 * @param reserve
+	 *            The number of requests kept in reserve
+	 * @return 0 if the request was taken, otherwise the time in milliseconds
+	 *         until the uploader has budget again
+	 */
+	public synchronized long acquire(Uploader<?> uploader, int reserve) {
+		String key = uploader.getClass().getName();
+		long delay = getDelay(key, reserve);
+		if (delay == 0) {
+			running.put(key, getRunning(key) + 1);
+		}
+		return delay;
+	}
+
+	/**
+	 * Return the request taken by an upload once it has finished, by which
+	 * time any rate limit it was given has been recorded
+	 * 
+	 * @param uploader
+	 *            The uploader
+	 */
+	public synchronized void release(Uploader<?> uploader) {
+		String key = uploader.getClass().getName();
+		int count = getRunning(key) - 1;
+		if (count > 0) {
+			running.put(key, count);
+		} else {
+			running.remove(key);
+		}
+	}
+
+	/**
+	 * Get the number of running uploads of an uploader
+	 * 
+	 * @param key
+	 *            The uploader class name
+	 * @return The number of uploads
+	 */
+	private int getRunning(String key) {
+		Integer count = running.get(key);
+		return count != null ? count : 0;
+	}
+
+	/**
+	 * Get the time until an uploader has budget to upload again
+	 * 
+	 * @param key
+	 *            The uploader class name
+	 * @param reserve
+	 *            The number of requests kept in reserve
+	 * @return The time in milliseconds, or 0 if it can upload now
+	 */
+	private long getDelay(String key, int reserve) {
+		RateLimit limit = limits.get(key);
+		if (limit == null) {
+			return 0;
+		}
+		long delay = limit.getReset() - System.currentTimeMillis();
+		if (delay <= 0) {
+			// The limit has reset, forget it until the server reports again
+			limits.remove(key);
+			return 0;
+		}
+		return limit.getRemaining() - getRunning(key) <= reserve ? delay : 0;
+	}
+}
@@ -0,0 +1,276 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.sleeksnap.util.Util;
+import org.sleeksnap.util.Utils.ImageUtil;
+
+/**
+ * Keeps small previews of uploaded images, so the history can show them
+ * without downloading anything. The encoded thumbnails are appended to a
+ * single data file, and an index file records the URL, offset and length of
+ * each one. The index is read into memory, so showing a thumbnail reads only
+ * its own slice of the data file.
+ * 
+ * The data is always written before its index record, and records pointing
+ * past the end of the data or cut short by a crash are ignored when loading.
+ * 
+ * @author Nikki
+ * 
+ */
+public class ThumbnailCache {
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(ThumbnailCache.class.getName());
+
+	/**
+	 * The width and height thumbnails are scaled to fit
+	 */
+	public static final int THUMBNAIL_SIZE = 128;
+
+	/**
+	 * The format thumbnails are encoded in
+	 */
+	private static final String FORMAT = "jpg";
+
+	/**
+	 * The shared instance, loaded when it is first used
+	 */
+	private static ThumbnailCache instance;
+
+	/**
+	 * Get the shared cache in the working directory, loading its index if it
+	 * hasn't been loaded yet
+	 * 
+	 * @return The cache
+	 */
+	public static synchronized ThumbnailCache getInstance() {
+		if (instance == null) {
+			instance = new ThumbnailCache(new File(Util.getWorkingDirectory(), "thumbnails"));
+			try {
+				instance.load();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Unable to load the thumbnail index, starting a new one", e);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * The data file
+	 */
+	private File dataFile;
+
+	/**
+	 * The index file
+	 */
+	private File indexFile;
+
+	/**
+	 * The offset and length of each thumbnail by URL
+	 */
+	private Map<String, long[]> slices = new HashMap<String, long[]>();
+
+	/**
+	 * Construct a new cache
+	 * 
+	 * @param directory
+	 *            The directory to keep the files in
+	 */
+	public ThumbnailCache(File directory) {
+		directory.mkdirs();
+		this.dataFile = new File(directory, "thumbnails.dat");
+		this.indexFile = new File(directory, "thumbnails.idx");
+	}
+
+	/**
+	 * Read the index into memory
+	 * 
+	 * @throws IOException
+	 *             If the index could not be read
+	 */
+	public synchronized void load() throws IOException {
+		slices.clear();
+		long dataLength = dataFile.length();
+		if (!indexFile.exists()) {
+			return;
+		}
+		long length = indexFile.length();
+		long end = 0;
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			while (true) {
+				String url;
+				long offset;
+				int size;
+				try {
+					url = input.readUTF();
+					offset = input.readLong();
+					size = input.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (offset + size <= dataLength) {
+					slices.put(url, new long[] { offset, size });
+				}
+				end = length - input.available();
+			}
+		} finally {
+			input.close();
+		}
+		if (end < length) {
+			// Cut short by a crash, remove it so new records can be read
+			RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+			try {
+				raf.setLength(end);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Create and store a thumbnail of an uploaded image
+	 * 
+	 * @param url
+	 *            The URL the image was uploaded to
+	 * @param image
+	 *            The image
+	 * @throws IOException
+	 *             If the thumbnail could not be stored
+	 */
+	public void store(String url, BufferedImage image) throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		ImageIO.write(ImageUtil.createThumbnail(image, THUMBNAIL_SIZE), FORMAT, encoded);
+		byte[] data = encoded.toByteArray();
+
+		// Written with a single call so a record is never interleaved
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(record);
+		synchronized (this) {
+			// The offset is where the data really starts, even if an earlier
+			// write failed part of the way through
+			long offset = append(dataFile, data);
+
+			output.writeUTF(url);
+			output.writeLong(offset);
+			output.writeInt(data.length);
+			append(indexFile, record.toByteArray());
+			slices.put(url, new long[] { offset, data.length });
+		}
+	}
+
+	/**
+	 * Append data to a file. If the write fails the file is cut back to its
+	 * old length, so a partial write doesn't shift what is written after it.
+	 * 
+	 * @param file
+	 *            The file
+	 * @param data
+	 *            The data
+	 * @return The offset the data was written at
+	 * @throws IOException
+	 *             If the data could not be written
+	 */
+	private static long append(File file, byte[] data) throws IOException {
+		FileOutputStream stream = new FileOutputStream(file, true);
+		try {
+			FileChannel channel = stream.getChannel();
+			long offset = channel.size();
+			try {
+				stream.write(data);
+			} catch (IOException e) {
+				try {
+					channel.truncate(offset);
+				} catch (IOException ex) {
+					logger.log(Level.WARNING, "Unable to remove a partial write from " + file, ex);
+				}
+				throw e;
+			}
+			return offset;
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Check whether there is a thumbnail for a URL
+	 * 
+	 * @param url
+	 *            The URL
+	 * @return True if there is a thumbnail
+	 */
+	public synchronized boolean contains(String url) {
+		return slices.containsKey(url);
+	}
+
+	/**
+	 * Read the thumbnail of a URL
+	 * 
+	 * @param url
+	 *            The URL
+	 * @return The thumbnail, or null if there isn't one
+	 * @throws IOException
+	 *             If the thumbnail could not be read
+	 */
+	public BufferedImage read(String url) throws IOException {
+		long[] slice;
+		synchronized (this) {
+			slice = slices.get(url);
+		}
+		if (slice == null) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) slice[1]);
+		RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, slice[0] + buffer.position()) < 0) {
+					throw new EOFException("The thumbnail of " + url + " is cut short");
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		return ImageIO.read(new ByteArrayInputStream(buffer.array()));
+	}
+}
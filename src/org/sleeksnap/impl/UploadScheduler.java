@@ -0,0 +1,708 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+import org.sleeksnap.Configuration;
+import org.sleeksnap.Constants;
+import org.sleeksnap.upload.RateLimiter;
+import org.sleeksnap.upload.Upload;
+import org.sleeksnap.upload.UploadContext;
+import org.sleeksnap.upload.UploadProgress;
+import org.sleeksnap.uploaders.UploadCancelledException;
+import org.sleeksnap.uploaders.UploadException;
+import org.sleeksnap.uploaders.Uploader;
+import org.sleeksnap.util.Utils.FormatUtil;
+
+/**
+ * Runs uploads on a pool of worker threads, keeping track of how long each
+ * uploader takes so slow uploads can be hedged against a backup uploader.
+ * 
+ * Every upload is given the connect and read timeouts configured for its
+ * uploader, and a watchdog aborts any upload which stops sending data, or runs
+ * past its deadline if one is set, so a dead host cannot hold up the uploads
+ * queued behind it. Running uploads are
+ * kept in a list so they can be shown and cancelled by the user.
+ * 
+ * @author Nikki
+ * 
+ */
+public class UploadScheduler {
+
+	/**
+	 * Logging instance
+	 */
+	private static final Logger logger = Logger.getLogger(UploadScheduler.class.getName());
+
+	/**
+	 * The percentile of recent upload times after which a hedge is started
+	 */
+	private static final double HEDGE_PERCENTILE = 0.95;
+
+	/**
+	 * The key of the limiter shared by every upload
+	 */
+	private static final String GLOBAL_LIMITER = "*";
+
+	/**
+	 * The interval at which the watchdog checks a running upload
+	 */
+	private static final long WATCHDOG_INTERVAL = 1000;
+
+	/**
+	 * The worker threads
+	 */
+	private ExecutorService workers = Executors.newCachedThreadPool();
+
+	/**
+	 * The watchdog which aborts uploads which stall or run past their deadline
+	 */
+	private ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1);
+
+	/**
+	 * The upload time tracker
+	 */
+	private LatencyTracker latencies = new LatencyTracker();
+
+	/**
+	 * The rate limit budget of each uploader
+	 */
+	private RateBudgetTracker budgets = new RateBudgetTracker();
+
+	/**
+	 * The transfer statistics of each uploader
+	 */
+	private MetricsRegistry metrics = new MetricsRegistry();
+
+	/**
+	 * The listeners for the progress of every upload
+	 */
+	private List<UploadListener> listeners = new CopyOnWriteArrayList<UploadListener>();
+
+	/**
+	 * The uploads which are currently running
+	 */
+	private List<UploadTask> active = new CopyOnWriteArrayList<UploadTask>();
+
+	/**
+	 * The configuration to read the timeouts from
+	 */
+	private Configuration configuration;
+
+	/**
+	 * The bandwidth limiters, keyed by uploader class name
+	 */
+	private Map<String, RateLimiter> limiters = new HashMap<String, RateLimiter>();
+
+	/**
+	 * Construct a new scheduler
+	 * 
+	 * @param configuration
+	 *            The configuration to read the timeouts from
+	 */
+	public UploadScheduler(Configuration configuration) {
+		this.configuration = configuration;
+		this.watchdog.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Start an upload without waiting for it
+	 * 
+	 * @param uploader
+	 *            The uploader to use
+	 * @param upload
+	 *            The object to upload
+	 * @return The running task
+	 */
+	public UploadTask submit(Uploader<?> uploader, Upload upload) {
+		UploadTask task = createTask(uploader, upload);
+		start(task, workers.submit(task));
+		return task;
+	}
+
+	/**
+	 * Wait for a submitted upload to complete
+	 * 
+	 * @param task
+	 *            The task to wait for
+	 * @return The resulting URL
+	 * @throws Exception
+	 *             If the uploader failed or was aborted by the watchdog
+	 */
+	public String await(UploadTask task) throws Exception {
+		try {
+			return task.getFuture().get();
+		} catch (ExecutionException e) {
+			throw unwrap(task, e);
+		} catch (CancellationException e) {
+			throw unwrap(task, e);
+		}
+	}
+
+	/**
+	 * Execute an upload and wait for it to complete
+	 * 
+	 * @param uploader
+	 *            The uploader to use
+	 * @param upload
+	 *            The object to upload
+	 * @return The completed task
+	 * @throws Exception
+	 *             If the uploader failed
+	 */
+	public UploadTask execute(Uploader<?> uploader, Upload upload) throws Exception {
+		UploadTask task = submit(uploader, upload);
+		try {
+			await(task);
+		} finally {
+			task.getFuture().cancel(true);
+		}
+		return task;
+	}
+
+	/**
+	 * Execute an upload, starting a second upload to the backup uploader if the
+	 * primary uploader takes longer than it usually does. The first upload to
+	 * return a URL wins and the other is cancelled.
+	 * 
+	 * @param primary
+	 *            The primary uploader
+	 * @param backup
+	 *            The backup uploader
+	 * @param upload
+	 *            The object to upload
+	 * @param defaultDelay
+	 *            The delay to use before enough upload times are known
+	 * @return The task which completed first, or null if neither returned a
+	 *         URL
+	 * @throws Exception
+	 *             If both uploaders failed
+	 */
+	public UploadTask hedge(Uploader<?> primary, Uploader<?> backup, Upload upload, long defaultDelay) throws Exception {
+		CompletionService<String> service = new ExecutorCompletionService<String>(workers);
+		Map<Future<String>, UploadTask> pending = new HashMap<Future<String>, UploadTask>();
+
+		UploadTask first = createTask(primary, upload);
+		pending.put(start(first, service.submit(first)), first);
+
+		long delay = latencies.getPercentile(primary, HEDGE_PERCENTILE, defaultDelay);
+
+		boolean hedged = false;
+		Exception failure = null;
+		try {
+			Future<String> future = service.poll(delay, TimeUnit.MILLISECONDS);
+			while (true) {
+				if (future == null) {
+					if (!hedged) {
+						// The primary is slow or failed, start the backup
+						logger.info("Upload to " + primary.getName() + " exceeded " + delay + "ms, hedging with " + backup.getName());
+						UploadTask second = createTask(backup, upload);
+						pending.put(start(second, service.submit(second)), second);
+						hedged = true;
+					}
+					if (pending.isEmpty()) {
+						break;
+					}
+					future = service.take();
+				}
+				UploadTask task = pending.remove(future);
+				try {
+					if (await(task) != null) {
+						return task;
+					}
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (UploadCancelledException e) {
+					// The user cancelled it, don't start the backup
+					throw e;
+				} catch (Exception e) {
+					failure = e;
+				}
+				future = null;
+				if (hedged && pending.isEmpty()) {
+					break;
+				}
+			}
+		} finally {
+			// Cancel the loser
+			for (UploadTask task : pending.values()) {
+				task.abort();
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return null;
+	}
+
+	/**
+	 * Upload a batch of objects, running at most the specified number of
+	 * uploads at once
+	 * 
+	 * @param uploader
+	 *            The uploader to use
+	 * @param uploads
+	 *            The objects to upload
+	 * @param parallelism
+	 *            The maximum number of uploads to run at once
+	 * @param listener
+	 *            The listener to notify as each upload completes, may be null
+	 * @return The tasks, in the same order as the uploads
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the uploads
+	 */
+	public List<UploadTask> executeBatch(Uploader<?> uploader, List<? extends Upload> uploads, int parallelism, BatchListener listener) throws InterruptedException {
+		CompletionService<String> service = new ExecutorCompletionService<String>(workers);
+		Map<Future<String>, UploadTask> running = new HashMap<Future<String>, UploadTask>();
+		List<UploadTask> tasks = new ArrayList<UploadTask>(uploads.size());
+
+		Iterator<? extends Upload> it = uploads.iterator();
+		int completed = 0;
+		try {
+			while (completed < uploads.size()) {
+				// Keep the pool filled up to the limit
+				while (it.hasNext() && running.size() < Math.max(1, parallelism)) {
+					UploadTask task = createTask(uploader, it.next());
+					running.put(start(task, service.submit(task)), task);
+					tasks.add(task);
+				}
+				UploadTask task = running.remove(service.take());
+				Exception failure = null;
+				try {
+					await(task);
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					failure = e;
+				}
+				completed++;
+				if (listener != null) {
+					listener.uploadCompleted(task, failure, completed, uploads.size());
+				}
+			}
+		} finally {
+			for (UploadTask task : running.values()) {
+				task.abort();
+			}
+		}
+		return tasks;
+	}
+
+	/**
+	 * Create a task using the timeouts configured for the uploader, adding it
+	 * to the running uploads
+	 * 
+	 * @param uploader
+	 *            The uploader to use
+	 * @param upload
+	 *            The object to upload
+	 * @return The task
+	 */
+	private UploadTask createTask(Uploader<?> uploader, Upload upload) {
+		int connectTimeout = configuration.getInteger("connectTimeout", Constants.Configuration.DEFAULT_CONNECT_TIMEOUT);
+		int readTimeout = configuration.getInteger("readTimeout", Constants.Configuration.DEFAULT_READ_TIMEOUT);
+		long deadline = configuration.getInteger("uploadDeadline", Constants.Configuration.DEFAULT_UPLOAD_DEADLINE);
+		long stallTimeout = configuration.getInteger("uploadStallTimeout", Constants.Configuration.DEFAULT_UPLOAD_STALL_TIMEOUT);
+
+		JSONObject timeouts = (JSONObject) getOverride("timeouts", uploader);
+		if (timeouts != null) {
+			connectTimeout = timeouts.getInt("connect", connectTimeout);
+			readTimeout = timeouts.getInt("read", readTimeout);
+			deadline = timeouts.getLong("deadline", deadline);
+			stallTimeout = timeouts.getLong("stall", stallTimeout);
+		}
+		UploadContext context = new UploadContext(connectTimeout, readTimeout);
+
+		Object encoding = getOverride("requestEncodings", uploader);
+		context.setRequestEncoding(encoding != null ? encoding.toString() : uploader.getRequestEncoding());
+
+		// Uploads share the global limit, and each uploader's own limit
+		context.setThrottleThreshold(configuration.getInteger("throttleThreshold", Constants.Configuration.DEFAULT_THROTTLE_THRESHOLD));
+		RateLimiter global = getLimiter(GLOBAL_LIMITER, configuration.getInteger("uploadRateLimit", Constants.Configuration.DEFAULT_UPLOAD_RATE_LIMIT));
+		if (global != null) {
+			context.addLimiter(global);
+		}
+		Object rate = getOverride("uploadRateLimits", uploader);
+		if (rate instanceof Number) {
+			RateLimiter limiter = getLimiter(uploader.getClass().getName(), ((Number) rate).longValue());
+			if (limiter != null) {
+				context.addLimiter(limiter);
+			}
+		}
+
+		UploadTask task = new UploadTask(this, uploader, upload, context, deadline, stallTimeout);
+		// Added before it is submitted so a fast upload can't finish first
+		active.add(task);
+		return task;
+	}
+
+	/**
+	 * Get the limiter for a key, creating it again if the configured rate has
+	 * changed
+	 * 
+	 * @param key
+	 *            The uploader class name, or the global key
+	 * @param rate
+	 *            The configured rate in bytes per second
+	 * @return The limiter, or null if the rate is unlimited
+	 */
+	private RateLimiter getLimiter(String key, long rate) {
+		synchronized (limiters) {
+			if (rate <= 0) {
+				limiters.remove(key);
+				return null;
+			}
+			RateLimiter limiter = limiters.get(key);
+			if (limiter == null || limiter.getRate() != rate) {
+				limiter = new RateLimiter(rate);
+				limiters.put(key, limiter);
+			}
+			return limiter;
+		}
+	}
+
+	/**
+	 * Find the value configured for an uploader or its parent uploader in a
+	 * configuration object keyed by uploader class name
+	 * 
+	 * @param key
+	 *            The configuration key
+	 * @param uploader
+	 *            The uploader
+	 * @return The value, or null if none is configured
+	 */
+	private Object getOverride(String key, Uploader<?> uploader) {
+		if (!configuration.contains(key)) {
+			return null;
+		}
+		JSONObject overrides = configuration.getJSONObject(key);
+		for (Uploader<?> u = uploader; u != null; u = u.getParentUploader()) {
+			String name = u.getClass().getName();
+			if (overrides.has(name)) {
+				return overrides.get(name);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Attach the future to a submitted task
+	 * 
+	 * @param task
+	 *            The task
+	 * @param future
+	 *            The future returned when submitting the task
+	 * @return The future
+	 */
+	private Future<String> start(UploadTask task, Future<String> future) {
+		task.setFuture(future);
+		return future;
+	}
+
+	/**
+	 * Arm the watchdog for a task which is about to start its transfer. The
+	 * upload is aborted if it sends nothing for longer than its stall timeout,
+	 * so a slow upload which keeps moving is never cut off, or if it runs past
+	 * its deadline when one is set.
+	 * 
+	 * @param task
+	 *            The task
+	 */
+	void arm(final UploadTask task) {
+		if (task.getDeadline() <= 0 && task.getStallTimeout() <= 0) {
+			return;
+		}
+		final long armed = System.currentTimeMillis();
+		task.setWatchdog(watchdog.scheduleWithFixedDelay(new Runnable() {
+			private long lastTransferred = task.getContext().getTransferred();
+			private long lastProgress = armed;
+
+			@Override
+			public void run() {
+				if (task.isExpired()) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				long transferred = task.getContext().getTransferred();
+				// Only writing a body can stall, the time spent connecting and
+				// waiting for the response is bounded by the timeouts
+				if (transferred != lastTransferred || !task.getContext().isSending()) {
+					lastTransferred = transferred;
+					lastProgress = now;
+				}
+				String reason = null;
+				if (task.getDeadline() > 0 && now - armed >= task.getDeadline()) {
+					reason = "exceeded its deadline of " + task.getDeadline() + "ms";
+				} else if (task.getStallTimeout() > 0 && now - lastProgress >= task.getStallTimeout()) {
+					reason = "sent nothing for " + task.getStallTimeout() + "ms";
+				}
+				if (reason != null) {
+					logger.warning("Upload to " + task.getUploader().getName() + " " + reason + ", aborting");
+					task.expire(reason);
+				}
+			}
+		}, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Remove a task from the list of running uploads
+	 * 
+	 * @param task
+	 *            The task which completed or was aborted
+	 */
+	void finished(UploadTask task) {
+		active.remove(task);
+	}
+
+	/**
+	 * Publish the progress of a running upload to the listeners
+	 * 
+	 * @param task
+	 *            The task
+	 * @param progress
+	 *            The progress
+	 */
+	void progressUpdated(UploadTask task, UploadProgress progress) {
+		for (UploadListener listener : listeners) {
+			listener.uploadProgress(task, progress);
+		}
+	}
+
+	/**
+	 * Record the final progress of an upload, logging and publishing it
+	 * 
+	 * @param task
+	 *            The task
+	 * @param progress
+	 *            The final progress
+	 */
+	void completed(UploadTask task, UploadProgress progress) {
+		String name = task.getUploader().getName();
+		boolean succeeded = task.getUrl() != null;
+		metrics.record(name, progress, succeeded);
+		if (progress.getTransferred() > 0) {
+			logger.info((succeeded ? "Sent " : "Failed after sending ") + FormatUtil.humanReadableByteCount(progress.getTransferred(), true) + " to " + name + " in " + progress.getElapsed() + "ms (" + FormatUtil.humanReadableByteCount(progress.getAverageRate(), true) + "/s)");
+		}
+		for (UploadListener listener : listeners) {
+			listener.uploadFinished(task, progress);
+		}
+	}
+
+	/**
+	 * Add a listener for the progress of every upload
+	 * 
+	 * @param listener
+	 *            The listener
+	 */
+	public void addUploadListener(UploadListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Get the transfer statistics of every uploader
+	 * 
+	 * @return The registry
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Get the uploads which are currently running
+	 * 
+	 * @return A snapshot of the running uploads
+	 */
+	public List<UploadTask> getActiveTasks() {
+		return new ArrayList<UploadTask>(active);
+	}
+
+	/**
+	 * Get the upload time tracker
+	 * 
+	 * @return The tracker
+	 */
+	public LatencyTracker getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * Get the rate limit budget tracker
+	 * 
+	 * @return The tracker
+	 */
+	public RateBudgetTracker getBudgets() {
+		return budgets;
+	}
+
+	/**
+	 * Get the time until an uploader has rate limit budget to upload again
+	 * 
+	 * @param uploader
+	 *            The uploader
+	 * @return The time in milliseconds, or 0 if it can upload now
+	 */
+	public long getRateLimitDelay(Uploader<?> uploader) {
+		return budgets.getDelay(uploader, configuration.getInteger("rateLimitReserve", 0));
+	}
+
+	/**
+	 * Take a request from an uploader's rate limit budget for an upload which
+	 * is about to start
+	 * 
+	 * @param uploader
+	 *            The uploader
+	 * @return 0 if the request was taken, otherwise the time in milliseconds
+	 *         until the uploader has budget again
+	 */
+	long acquireRateBudget(Uploader<?> uploader) {
+		return budgets.acquire(uploader, configuration.getInteger("rateLimitReserve", 0));
+	}
+
+	/**
+	 * Get the longest time an upload will wait for a rate limit to reset
+	 * before failing instead
+	 * 
+	 * @return The time in milliseconds
+	 */
+	public long getMaxRateLimitDelay() {
+		return configuration.getInteger("rateLimitMaxDelay", Constants.Configuration.DEFAULT_RATE_LIMIT_MAX_DELAY);
+	}
+
+	/**
+	 * Choose between an uploader and its backup by their rate limit budgets,
+	 * using the backup if the uploader would have to wait and the backup
+	 * wouldn't
+	 * 
+	 * @param uploader
+	 *            The uploader
+	 * @param backup
+	 *            The backup, or null
+	 * @return The uploader to use
+	 */
+	public Uploader<?> chooseByBudget(Uploader<?> uploader, Uploader<?> backup) {
+		if (backup != null && getRateLimitDelay(uploader) > 0 && getRateLimitDelay(backup) == 0) {
+			logger.info(uploader.getName() + " is rate limited, sending the upload to " + backup.getName());
+			return backup;
+		}
+		return uploader;
+	}
+
+	/**
+	 * Stop the worker threads
+	 */
+	public void shutdown() {
+		watchdog.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	/**
+	 * A listener for the progress of uploads, called from the thread running
+	 * the upload
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	public static interface UploadListener {
+
+		/**
+		 * Called a few times a second while an upload sends data
+		 * 
+		 * @param task
+		 *            The task
+		 * @param progress
+		 *            The progress
+		 */
+		public void uploadProgress(UploadTask task, UploadProgress progress);
+
+		/**
+		 * Called when an upload finishes, successfully or not
+		 * 
+		 * @param task
+		 *            The task
+		 * @param progress
+		 *            The final progress
+		 */
+		public void uploadFinished(UploadTask task, UploadProgress progress);
+	}
+
+	/**
+	 * A listener which is notified as each upload in a batch completes, called
+	 * from the thread which started the batch
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	public static interface BatchListener {
+
+		/**
+		 * Called when an upload in the batch completes
+		 * 
+		 * @param task
+		 *            The completed task
+		 * @param failure
+		 *            The exception thrown by the uploader, or null if it
+		 *            succeeded
+		 * @param completed
+		 *            The number of completed uploads
+		 * @param total
+		 *            The number of uploads in the batch
+		 */
+		public void uploadCompleted(UploadTask task, Exception failure, int completed, int total);
+	}
+
+	/**
+	 * Unwrap the exception thrown by an uploader
+	 * 
+	 * @param task
+	 *            The task which failed
+	 * @param e
+	 *            The exception thrown by the future
+	 * @return The original exception, or an UploadException if the task was
+	 *         cancelled or aborted by the watchdog
+	 */
+	private static Exception unwrap(UploadTask task, Exception e) {
+		if (task.isCancelled()) {
+			return new UploadCancelledException("Upload to " + task.getUploader().getName() + " was cancelled");
+		}
+		if (task.isExpired()) {
+			return new UploadException("Upload to " + task.getUploader().getName() + " " + task.getExpiry());
+		}
+		Throwable cause = e.getCause();
+		if (e instanceof ExecutionException && cause instanceof Exception) {
+			return (Exception) cause;
+		}
+		return e;
+	}
+}
@@ -0,0 +1,384 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.impl;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.sleeksnap.upload.FileUpload;
+import org.sleeksnap.upload.ImageUpload;
+import org.sleeksnap.upload.TextUpload;
+import org.sleeksnap.upload.ProgressListener;
+import org.sleeksnap.upload.Upload;
+import org.sleeksnap.upload.UploadContext;
+import org.sleeksnap.upload.UploadProgress;
+import org.sleeksnap.uploaders.UploadException;
+import org.sleeksnap.uploaders.Uploader;
+
+/**
+ * A single run of an uploader against an upload, executed by the
+ * UploadScheduler. The task is also the handle used to cancel the upload
+ * while it is running.
+ * 
+ * @author Nikki
+ * 
+ */
+public class UploadTask implements Callable<String>, ProgressListener {
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(UploadTask.class.getName());
+
+	/**
+	 * The scheduler running this task
+	 */
+	private UploadScheduler scheduler;
+
+	/**
+	 * The uploader to use
+	 */
+	private Uploader<Upload> uploader;
+
+	/**
+	 * The object being uploaded
+	 */
+	private Upload upload;
+
+	/**
+	 * The network context of this upload
+	 */
+	private UploadContext context;
+
+	/**
+	 * The maximum time this upload may take, in milliseconds, or 0 for no
+	 * limit
+	 */
+	private long deadline;
+
+	/**
+	 * The longest time this upload may go without sending any data, in
+	 * milliseconds, or 0 for no limit
+	 */
+	private long stallTimeout;
+
+	/**
+	 * Why the watchdog aborted this upload, or null if it didn't
+	 */
+	private volatile String expiry;
+
+	/**
+	 * Whether this upload was cancelled by the user
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * Whether this upload was stopped before it finished, by the user, the
+	 * watchdog or a hedge which won
+	 */
+	private volatile boolean aborted;
+
+	/**
+	 * The resulting URL, valid once the task has completed
+	 */
+	private volatile String url;
+
+	/**
+	 * The future of this task, set once it has been submitted
+	 */
+	private Future<String> future;
+
+	/**
+	 * The watchdog timer of this task, cancelled once it completes
+	 */
+	private volatile Future<?> watchdog;
+
+	/**
+	 * Construct a new upload task
+	 * 
+	 * @param scheduler
+	 *            The scheduler running the task
+	 * @param uploader
+	 *            The uploader to use
+	 * @param upload
+	 *            The object to upload
+	 * @param context
+	 *            The network context of the upload
+	 * @param deadline
+	 *            The maximum time the upload may take, or 0 for no limit
+	 * @param stallTimeout
+	 *            The longest time the upload may go without sending any data,
+	 *            or 0 for no limit
+	 */
+	@SuppressWarnings("unchecked")
+	public UploadTask(UploadScheduler scheduler, Uploader<?> uploader, Upload upload, UploadContext context, long deadline, long stallTimeout) {
+		this.scheduler = scheduler;
+		this.uploader = (Uploader<Upload>) uploader;
+		this.upload = upload;
+		this.context = context;
+		this.deadline = deadline;
+		this.stallTimeout = stallTimeout;
+	}
+
+	@Override
+	public String call() throws Exception {
+		UploadContext.set(context);
+		long start = 0;
+		boolean timedOut = false, budgeted = false;
+		try {
+			if (cancelled) {
+				return null;
+			}
+			context.setLength(getLength(upload));
+			context.setProgressListener(this);
+
+			// Wait for the server's rate limit to reset rather than be refused
+			long delay;
+			while ((delay = scheduler.acquireRateBudget(uploader)) > 0) {
+				if (delay > scheduler.getMaxRateLimitDelay()) {
+					throw new UploadException(uploader.getName() + " is rate limited for another " + delay / 1000 + " seconds");
+				}
+				logger.info(uploader.getName() + " is rate limited, waiting " + delay + "ms");
+				Thread.sleep(delay);
+			}
+			budgeted = true;
+
+			// Armed after waiting for the rate limit, which isn't part of the
+			// transfer
+			scheduler.arm(this);
+
+			start = System.currentTimeMillis();
+			context.start();
+			url = uploader.upload(upload);
+			return url;
+		} catch (Exception e) {
+			timedOut = isTimeout(e);
+			throw e;
+		} finally {
+			// An upload which was stopped or timed out took at least as long as
+			// it ran, leaving it out would make the uploader look faster than
+			// it is
+			if (start > 0 && (url != null || aborted || timedOut)) {
+				scheduler.getLatencies().record(uploader, System.currentTimeMillis() - start);
+			}
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
+			if (context.getRateLimit() != null) {
+				scheduler.getBudgets().update(uploader, context.getRateLimit());
+			}
+			if (budgeted) {
+				scheduler.getBudgets().release(uploader);
+			}
+			context.sample(true);
+			scheduler.completed(this, context.getProgress());
+			context.release();
+			UploadContext.set(null);
+			scheduler.finished(this);
+		}
+	}
+
+	@Override
+	public void progressUpdated(UploadProgress progress) {
+		scheduler.progressUpdated(this, progress);
+	}
+
+	/**
+	 * Abort this upload, closing its connections and interrupting the thread
+	 * running it
+	 */
+	public void abort() {
+		aborted = true;
+		context.abort();
+		if (future != null) {
+			future.cancel(true);
+		}
+		scheduler.finished(this);
+	}
+
+	/**
+	 * Cancel this upload, aborting its connections
+	 */
+	public void cancel() {
+		cancelled = true;
+		abort();
+	}
+
+	/**
+	 * Abort this upload because it exceeded its deadline or stalled
+	 * 
+	 * @param reason
+	 *            Why the upload was aborted
+	 */
+	void expire(String reason) {
+		expiry = reason;
+		abort();
+	}
+
+	/**
+	 * Check whether this upload was aborted for exceeding its deadline or
+	 * stalling
+	 * 
+	 * @return True if the watchdog aborted the upload
+	 */
+	public boolean isExpired() {
+		return expiry != null;
+	}
+
+	/**
+	 * Get why the watchdog aborted this upload
+	 * 
+	 * @return The reason, or null if it wasn't aborted by the watchdog
+	 */
+	public String getExpiry() {
+		return expiry;
+	}
+
+	/**
+	 * Check whether this upload was cancelled by the user
+	 * 
+	 * @return True if cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Get the maximum time this upload may take
+	 * 
+	 * @return The deadline in milliseconds, or 0 for no limit
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Get the longest time this upload may go without sending any data while
+	 * it is writing a body
+	 * 
+	 * @return The time in milliseconds, or 0 for no limit
+	 */
+	public long getStallTimeout() {
+		return stallTimeout;
+	}
+
+	/**
+	 * Get the uploader used by this task
+	 * 
+	 * @return The uploader
+	 */
+	public Uploader<?> getUploader() {
+		return uploader;
+	}
+
+	/**
+	 * Get the object being uploaded
+	 * 
+	 * @return The upload
+	 */
+	public Upload getUpload() {
+		return upload;
+	}
+
+	/**
+	 * Get the network context of this upload
+	 * 
+	 * @return The context
+	 */
+	public UploadContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Get the resulting URL
+	 * 
+	 * @return The URL, or null if the task has not completed
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Set the future of this task
+	 * 
+	 * @param future
+	 *            The future returned when submitting this task
+	 */
+	void setFuture(Future<String> future) {
+		this.future = future;
+	}
+
+	/**
+	 * Set the watchdog timer of this task
+	 * 
+	 * @param watchdog
+	 *            The scheduled watchdog
+	 */
+	void setWatchdog(Future<?> watchdog) {
+		this.watchdog = watchdog;
+	}
+
+	/**
+	 * Get the future of this task
+	 * 
+	 * @return The future, or null if the task was not submitted
+	 */
+	public Future<String> getFuture() {
+		return future;
+	}
+
+	/**
+	 * Check whether an upload failed because the host stopped responding
+	 * 
+	 * @param e
+	 *            The exception thrown by the uploader
+	 * @return True if the exception or one of its causes is a socket timeout
+	 */
+	private static boolean isTimeout(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SocketTimeoutException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Estimate the number of bytes an upload will send. Uploaders which encode
+	 * the data replace this with the length of the body they really send
+	 * 
+	 * @param upload
+	 *            The upload
+	 * @return The number of bytes, or -1 if unknown
+	 * @throws IOException
+	 *             If an image could not be encoded
+	 */
+	private static long getLength(Upload upload) throws IOException {
+		if (upload instanceof FileUpload) {
+			return ((FileUpload) upload).getFile().length();
+		} else if (upload instanceof ImageUpload) {
+			return ((ImageUpload) upload).getData().length;
+		} else if (upload instanceof TextUpload) {
+			return ((TextUpload) upload).getText().getBytes("UTF-8").length;
+		}
+		return -1;
+	}
+}
@@ -18,6 +18,7 @@
 package org.sleeksnap.upload;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -36,13 +37,42 @@ public class ImageUpload implements Upload {
 	 */
 	private BufferedImage image;
 	
+	/**
+	 * The encoded PNG data, cached so that uploading to several uploaders only
+	 * encodes the image once
+	 */
+	private byte[] data;
+	
 	public ImageUpload(BufferedImage image) {
 		this.image = image;
 	}
 
 	@Override
 	public InputStream asInputStream() throws IOException {
-		return ImageUtil.toInputStream(image);
+		return new ByteArrayInputStream(getData());
+	}
+	
+	/**
+	 * Get the image encoded as a PNG, encoding it on the first call
+	 * @return
+	 * 			The PNG data
+	 * @throws IOException
+	 * 			If an error occurred while encoding
+	 */
+	public synchronized byte[] getData() throws IOException {
+		if (data == null) {
+			data = ImageUtil.toByteArray(image);
+		}
+		return data;
+	}
+	
+	/**
+	 * Get the encoded PNG data without encoding the image
+	 * @return
+	 * 			The PNG data, or null if the image hasn't been encoded yet
+	 */
+	public synchronized byte[] getCachedData() {
+		return data;
 	}
 	
 	/**
@@ -53,7 +83,7 @@ public class ImageUpload implements Upload {
 	 * 			If an error occurred while writing/reading into base64
 	 */
 	public String toBase64() throws IOException {
-		return ImageUtil.toBase64(image);
+		return ImageUtil.toBase64(getData());
 	}
 
 	/**
@@ -61,8 +91,9 @@ public class ImageUpload implements Upload {
 	 * @param image
 	 * 			The image to set
 	 */
-	public void setImage(BufferedImage image) {
+	public synchronized void setImage(BufferedImage image) {
 		this.image = image;
+		this.data = null;
 	}
 
 	/**
@@ -0,0 +1,36 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.upload;
+
+/**
+ * A listener which receives the progress of an upload, at most a few times a
+ * second
+ * 
+ * @author Nikki
+ * 
+ */
+public interface ProgressListener {
+
+	/**
+	 * Called with the progress of the upload
+	 * 
+	 * @param progress
+	 *            The progress
+	 */
+	public void progressUpdated(UploadProgress progress);
+}
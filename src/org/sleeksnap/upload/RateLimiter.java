@@ -0,0 +1,92 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.upload;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket which limits the rate bytes can be sent at. The bucket holds
+ * up to a second's worth of tokens, and senders which take more than are
+ * available wait until the debt has been paid back, so any number of uploads
+ * can share one limiter.
+ * 
+ * @author Nikki
+ * 
+ */
+public class RateLimiter {
+
+	/**
+	 * The rate in bytes per second
+	 */
+	private final long rate;
+
+	/**
+	 * The tokens currently available, negative if in debt
+	 */
+	private double tokens;
+
+	/**
+	 * The time the bucket was last refilled, in nanoseconds
+	 */
+	private long refilled = System.nanoTime();
+
+	/**
+	 * Construct a new limiter
+	 * 
+	 * @param rate
+	 *            The rate in bytes per second
+	 */
+	public RateLimiter(long rate) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Rate must be positive");
+		}
+		this.rate = rate;
+		this.tokens = rate;
+	}
+
+	/**
+	 * Get the rate of this limiter
+	 * 
+	 * @return The rate in bytes per second
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Take tokens for bytes, waiting until they are available
+	 * 
+	 * @param bytes
+	 *            The number of bytes
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public void acquire(long bytes) throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - refilled) * rate / 1e9);
+			refilled = now;
+			tokens -= bytes;
+			wait = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+		}
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+}
@@ -19,6 +19,7 @@ package org.sleeksnap.upload;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 
 /**
  * An upload commonly used for Pastebins which contains text only
@@ -28,6 +29,11 @@ import java.io.InputStream;
  */
 public class TextUpload implements Upload {
 
+	/**
+	 * The charset the text is encoded with
+	 */
+	public static final Charset CHARSET = Charset.forName("UTF-8");
+
 	/**
 	 * The upload text data
 	 */
@@ -39,7 +45,7 @@ public class TextUpload implements Upload {
 	
 	@Override
 	public InputStream asInputStream() {
-		return new ByteArrayInputStream(text.getBytes());
+		return new ByteArrayInputStream(text.getBytes(CHARSET));
 	}
 	
 	/**
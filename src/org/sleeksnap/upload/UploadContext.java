@@ -0,0 +1,563 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.upload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLConnection;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.sleeksnap.Constants;
+import org.sleeksnap.http.RateLimit;
+
+/**
+ * Holds the network settings of the upload running on the current thread and
+ * the connections it has opened, so that they can be aborted from another
+ * thread.
+ * 
+ * Code which opens connections should use <code>configure</code> and
+ * <code>connect</code>, which fall back to the default timeouts when no
+ * upload is running.
+ * 
+ * @author Nikki
+ * 
+ */
+public class UploadContext {
+
+	/**
+	 * The context of the upload running on each thread
+	 */
+	private static final ThreadLocal<UploadContext> current = new ThreadLocal<UploadContext>();
+
+	/**
+	 * The most bytes sent at once by a throttled upload
+	 */
+	private static final int THROTTLED_CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * The interval progress is published at, in milliseconds
+	 */
+	private static final long PUBLISH_INTERVAL = 250;
+
+	/**
+	 * The connect timeout in milliseconds
+	 */
+	private int connectTimeout;
+
+	/**
+	 * The read timeout in milliseconds
+	 */
+	private int readTimeout;
+
+	/**
+	 * The encoding to compress request bodies with, or null to send them as
+	 * they are
+	 */
+	private String requestEncoding;
+
+	/**
+	 * The limiters the upload's bandwidth is shared with
+	 */
+	private List<RateLimiter> limiters = new ArrayList<RateLimiter>();
+
+	/**
+	 * The size below which uploads are not throttled
+	 */
+	private long throttleThreshold;
+
+	/**
+	 * The rate limit last reported by the server, or null
+	 */
+	private volatile RateLimit rateLimit;
+
+	/**
+	 * The connections opened by this upload
+	 */
+	private List<Object> connections = new LinkedList<Object>();
+
+	/**
+	 * Whether this upload has been aborted
+	 */
+	private volatile boolean aborted;
+
+	/**
+	 * The number of bytes sent so far
+	 */
+	private volatile long transferred;
+
+	/**
+	 * Whether a body is being written, as opposed to connecting or waiting
+	 * for a response
+	 */
+	private volatile boolean sending;
+
+	/**
+	 * The total number of bytes to send, or -1 if unknown
+	 */
+	private volatile long length = -1;
+
+	/**
+	 * The time the upload started
+	 */
+	private volatile long started = System.currentTimeMillis();
+
+	/**
+	 * The time of the last progress sample
+	 */
+	private long sampleTime = started;
+
+	/**
+	 * The number of bytes sent at the last progress sample
+	 */
+	private long sampleBytes;
+
+	/**
+	 * The throughput between the last two samples, in bytes per second
+	 */
+	private volatile long currentRate;
+
+	/**
+	 * The listener the progress is published to, or null
+	 */
+	private ProgressListener listener;
+
+	/**
+	 * Construct a new context with the specified timeouts
+	 * 
+	 * @param connectTimeout
+	 *            The connect timeout in milliseconds
+	 * @param readTimeout
+	 *            The read timeout in milliseconds
+	 */
+	public UploadContext(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Get the connect timeout
+	 * 
+	 * @return The connect timeout in milliseconds
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Get the read timeout
+	 * 
+	 * @return The read timeout in milliseconds
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Mark the start of the upload, from which its throughput is measured
+	 */
+	public void start() {
+		started = sampleTime = System.currentTimeMillis();
+		sampleBytes = transferred;
+	}
+
+	/**
+	 * Set the listener the progress is published to
+	 * 
+	 * @param listener
+	 *            The listener
+	 */
+	public void setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Get a snapshot of the progress of this upload
+	 * 
+	 * @return The progress
+	 */
+	public UploadProgress getProgress() {
+		return new UploadProgress(transferred, length, System.currentTimeMillis() - started, currentRate);
+	}
+
+	/**
+	 * Take a progress sample and publish it, if the interval has passed
+	 * 
+	 * @param force
+	 *            True to publish regardless of the interval
+	 */
+	public void sample(boolean force) {
+		long now = System.currentTimeMillis();
+		if (!force && now - sampleTime < PUBLISH_INTERVAL) {
+			return;
+		}
+		long bytes = transferred;
+		if (now > sampleTime) {
+			currentRate = (bytes - sampleBytes) * 1000 / (now - sampleTime);
+		}
+		sampleTime = now;
+		sampleBytes = bytes;
+		if (listener != null) {
+			listener.progressUpdated(getProgress());
+		}
+	}
+
+	/**
+	 * Get the encoding to compress request bodies with
+	 * 
+	 * @return The Content-Encoding name, or null if bodies aren't compressed
+	 */
+	public String getRequestEncoding() {
+		return requestEncoding;
+	}
+
+	/**
+	 * Set the encoding to compress request bodies with, only if the endpoint
+	 * accepts it
+	 * 
+	 * @param requestEncoding
+	 *            The Content-Encoding name, or null
+	 */
+	public void setRequestEncoding(String requestEncoding) {
+		this.requestEncoding = requestEncoding;
+	}
+
+	/**
+	 * Get the number of bytes sent so far
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getTransferred() {
+		return transferred;
+	}
+
+	/**
+	 * Set the number of bytes sent so far, used when resuming an upload
+	 * 
+	 * @param transferred
+	 *            The number of bytes
+	 */
+	public void setTransferred(long transferred) {
+		this.transferred = transferred;
+	}
+
+	/**
+	 * Get the total number of bytes to send
+	 * 
+	 * @return The number of bytes, or -1 if unknown
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Set the total number of bytes to send
+	 * 
+	 * @param length
+	 *            The number of bytes, or -1 if unknown
+	 */
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	/**
+	 * Get the rate limit the server last reported during this upload
+	 * 
+	 * @return The rate limit, or null if none was reported
+	 */
+	public RateLimit getRateLimit() {
+		return rateLimit;
+	}
+
+	/**
+	 * Set the rate limit the server reported
+	 * 
+	 * @param rateLimit
+	 *            The rate limit
+	 */
+	public void setRateLimit(RateLimit rateLimit) {
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * Limit the bandwidth of this upload with a limiter
+	 * 
+	 * @param limiter
+	 *            The limiter
+	 */
+	public void addLimiter(RateLimiter limiter) {
+		limiters.add(limiter);
+	}
+
+	/**
+	 * Set the size below which uploads are not throttled, so small uploads
+	 * such as screenshots are always sent at full speed
+	 * 
+	 * @param throttleThreshold
+	 *            The size in bytes
+	 */
+	public void setThrottleThreshold(long throttleThreshold) {
+		this.throttleThreshold = throttleThreshold;
+	}
+
+	/**
+	 * Check whether this upload is throttled
+	 * 
+	 * @return True if the upload's bandwidth is limited
+	 */
+	public boolean isThrottled() {
+		return !limiters.isEmpty() && (length < 0 || length >= throttleThreshold);
+	}
+
+	/**
+	 * Check whether this upload has been aborted
+	 * 
+	 * @return True if aborted
+	 */
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * Check whether a body is being written. Only then does a lack of progress
+	 * mean the transfer has stalled, connecting and waiting for a response are
+	 * bounded by the timeouts instead
+	 * 
+	 * @return True if a body is being written
+	 */
+	public boolean isSending() {
+		return sending;
+	}
+
+	/**
+	 * Register a connection to be closed if the upload is aborted
+	 * 
+	 * @param connection
+	 *            The HttpURLConnection or Closeable
+	 * @throws IOException
+	 *             If the upload has already been aborted
+	 */
+	public void register(Object connection) throws IOException {
+		synchronized (connections) {
+			if (aborted) {
+				close(connection);
+				throw new IOException("Upload aborted");
+			}
+			connections.add(connection);
+		}
+	}
+
+	/**
+	 * Abort the upload, closing every connection it has opened
+	 */
+	public void abort() {
+		synchronized (connections) {
+			aborted = true;
+			for (Object connection : connections) {
+				close(connection);
+			}
+			connections.clear();
+		}
+	}
+
+	/**
+	 * Forget the registered connections once the upload has completed
+	 */
+	public void release() {
+		synchronized (connections) {
+			connections.clear();
+		}
+	}
+
+	/**
+	 * Close a registered connection, ignoring any errors
+	 * 
+	 * @param connection
+	 *            The connection
+	 */
+	private static void close(Object connection) {
+		try {
+			if (connection instanceof HttpURLConnection) {
+				((HttpURLConnection) connection).disconnect();
+			} else if (connection instanceof Closeable) {
+				((Closeable) connection).close();
+			}
+		} catch (Exception e) {
+			// Ignored, we are aborting anyway
+		}
+	}
+
+	/**
+	 * Get the context of the upload running on this thread
+	 * 
+	 * @return The context, or null if no upload is running
+	 */
+	public static UploadContext current() {
+		return current.get();
+	}
+
+	/**
+	 * Set the context of the upload running on this thread
+	 * 
+	 * @param context
+	 *            The context, or null to clear it
+	 */
+	public static void set(UploadContext context) {
+		if (context == null) {
+			current.remove();
+		} else {
+			current.set(context);
+		}
+	}
+
+	/**
+	 * Record bytes sent by the upload running on this thread, waiting if it
+	 * is sending faster than its bandwidth limit
+	 * 
+	 * @param bytes
+	 *            The number of bytes sent
+	 * @throws InterruptedIOException
+	 *             If interrupted while waiting
+	 */
+	public static void progress(long bytes) throws InterruptedIOException {
+		UploadContext context = current();
+		if (context != null) {
+			if (context.isThrottled()) {
+				try {
+					for (RateLimiter limiter : context.limiters) {
+						limiter.acquire(bytes);
+					}
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while throttled");
+				}
+			}
+			context.sending = true;
+			context.transferred += bytes;
+			context.sample(false);
+		}
+	}
+
+	/**
+	 * Record the length of the body the upload running on this thread is
+	 * about to send, replacing the estimate made from the upload itself with
+	 * the number of bytes really sent
+	 * 
+	 * @param bytes
+	 *            The length of the body
+	 */
+	public static void expect(long bytes) {
+		UploadContext context = current();
+		if (context != null) {
+			context.length = context.transferred + bytes;
+		}
+	}
+
+	/**
+	 * Record that the upload running on this thread has written its body and
+	 * is waiting for the response
+	 */
+	public static void sent() {
+		UploadContext context = current();
+		if (context != null) {
+			context.sending = false;
+		}
+	}
+
+	/**
+	 * Get the number of bytes to send at once, smaller when the upload is
+	 * throttled so that it is sent smoothly
+	 * 
+	 * @param preferred
+	 *            The preferred size
+	 * @return The size
+	 */
+	public static int getChunkSize(int preferred) {
+		UploadContext context = current();
+		return context != null && context.isThrottled() ? Math.min(preferred, THROTTLED_CHUNK_SIZE) : preferred;
+	}
+
+	/**
+	 * Apply the current timeouts to a connection and register it with the
+	 * running upload
+	 * 
+	 * @param connection
+	 *            The connection
+	 * @return The connection, for chaining
+	 * @throws IOException
+	 *             If the upload has been aborted
+	 */
+	public static <T extends URLConnection> T configure(T connection) throws IOException {
+		UploadContext context = current();
+		if (context != null) {
+			connection.setConnectTimeout(context.connectTimeout);
+			connection.setReadTimeout(context.readTimeout);
+			context.register(connection);
+		} else {
+			connection.setConnectTimeout(Constants.Configuration.DEFAULT_CONNECT_TIMEOUT);
+			connection.setReadTimeout(Constants.Configuration.DEFAULT_READ_TIMEOUT);
+		}
+		return connection;
+	}
+
+	/**
+	 * Open a socket using the current timeouts and register it with the
+	 * running upload. The socket is backed by a SocketChannel, so files can
+	 * be transferred to it directly with FileChannel.transferTo
+	 * 
+	 * @param host
+	 *            The host
+	 * @param port
+	 *            The port
+	 * @return The connected socket
+	 * @throws IOException
+	 *             If the connection failed or the upload has been aborted
+	 */
+	public static Socket connect(String host, int port) throws IOException {
+		UploadContext context = current();
+		Socket socket = SocketChannel.open().socket();
+		if (context != null) {
+			context.register(socket);
+		}
+		socket.connect(new InetSocketAddress(host, port), context != null ? context.connectTimeout : Constants.Configuration.DEFAULT_CONNECT_TIMEOUT);
+		socket.setSoTimeout(context != null ? context.readTimeout : Constants.Configuration.DEFAULT_READ_TIMEOUT);
+		return socket;
+	}
+
+	/**
+	 * Apply the current read timeout to a socket which was opened by an
+	 * earlier upload, and register it with the running upload
+	 * 
+	 * @param socket
+	 *            The connected socket
+	 * @throws IOException
+	 *             If the upload has been aborted
+	 */
+	public static void adopt(Socket socket) throws IOException {
+		UploadContext context = current();
+		if (context != null) {
+			context.register(socket);
+		}
+		socket.setSoTimeout(context != null ? context.readTimeout : Constants.Configuration.DEFAULT_READ_TIMEOUT);
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.upload;
+
+/**
+ * A snapshot of the progress of an upload
+ * 
+ * @author Nikki
+ * 
+ */
+public class UploadProgress {
+
+	/**
+	 * The number of bytes sent
+	 */
+	private long transferred;
+
+	/**
+	 * The total number of bytes, or -1 if unknown
+	 */
+	private long length;
+
+	/**
+	 * The time since the upload started, in milliseconds
+	 */
+	private long elapsed;
+
+	/**
+	 * The throughput over the last sampling interval, in bytes per second
+	 */
+	private long currentRate;
+
+	/**
+	 * Construct a new snapshot
+	 * 
+	 * @param transferred
+	 *            The number of bytes sent
+	 * @param length
+	 *            The total number of bytes, or -1 if unknown
+	 * @param elapsed
+	 *            The time since the upload started, in milliseconds
+	 * @param currentRate
+	 *            The recent throughput, in bytes per second
+	 */
+	public UploadProgress(long transferred, long length, long elapsed, long currentRate) {
+		this.transferred = transferred;
+		this.length = length;
+		this.elapsed = elapsed;
+		this.currentRate = currentRate;
+	}
+
+	/**
+	 * Get the number of bytes sent
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getTransferred() {
+		return transferred;
+	}
+
+	/**
+	 * Get the total number of bytes
+	 * 
+	 * @return The number of bytes, or -1 if unknown
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the time since the upload started
+	 * 
+	 * @return The time in milliseconds
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * Get the throughput over the last sampling interval
+	 * 
+	 * @return The throughput in bytes per second
+	 */
+	public long getCurrentRate() {
+		return currentRate;
+	}
+
+	/**
+	 * Get the throughput since the upload started
+	 * 
+	 * @return The throughput in bytes per second
+	 */
+	public long getAverageRate() {
+		return elapsed > 0 ? transferred * 1000 / elapsed : 0;
+	}
+
+	/**
+	 * Get the percentage of the upload which has been sent
+	 * 
+	 * @return The percentage, or -1 if the length is unknown
+	 */
+	public int getPercent() {
+		return length > 0 ? (int) Math.min(100, transferred * 100 / length) : -1;
+	}
+}
@@ -70,6 +70,30 @@ public abstract class Uploader<T extends Upload> {
 	 */
 	public abstract String upload(T t) throws Exception;
 	
+	/**
+	 * Can be overridden by the uploader to declare the URL it uploads to, so a
+	 * connection can be opened while the user is still capturing.
+	 * By default, if this is a sub uploader for a Generic uploader, the parent's endpoint is used
+	 * 
+	 * @return
+	 * 			The endpoint, or null if unknown
+	 */
+	public String getEndpoint() {
+		return parent != null ? parent.getEndpoint() : null;
+	}
+	
+	/**
+	 * Can be overridden by the uploader if its endpoint accepts compressed
+	 * request bodies, which are then compressed with the returned encoding.
+	 * By default, if this is a sub uploader for a Generic uploader, the parent's encoding is used
+	 * 
+	 * @return
+	 * 			The Content-Encoding name ("gzip" or "deflate"), or null to send bodies uncompressed
+	 */
+	public String getRequestEncoding() {
+		return parent != null ? parent.getRequestEncoding() : null;
+	}
+	
 	/**
 	 * Can be overridden by the uploader to validate the settings.
 	 * 
@@ -53,6 +53,11 @@ public class FilebinUploader extends Uploader<FileUpload> {
 		return "Filebin.ca";
 	}
 
+	@Override
+	public String getEndpoint() {
+		return API_URL;
+	}
+
 	@Override
 	public String upload(FileUpload file) throws Exception {
 		MultipartPostMethod post = new MultipartPostMethod(API_URL);
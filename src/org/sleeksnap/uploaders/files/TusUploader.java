@@ -0,0 +1,93 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.uploaders.files;
+
+import java.io.File;
+import java.net.URL;
+
+import org.sleeksnap.http.ResumableUpload;
+import org.sleeksnap.upload.FileUpload;
+import org.sleeksnap.uploaders.Uploader;
+import org.sleeksnap.uploaders.UploaderConfigurationException;
+import org.sleeksnap.uploaders.settings.Setting;
+import org.sleeksnap.uploaders.settings.SettingsClass;
+import org.sleeksnap.util.Util;
+
+/**
+ * An uploader for servers implementing the tus resumable upload protocol
+ * (http://tus.io). Large files are sent in chunks, and a failed upload
+ * continues where it stopped when it is retried, even after a restart.
+ * 
+ * @author Nikki
+ * 
+ */
+@SettingsClass(TusUploader.TusSettings.class)
+public class TusUploader extends Uploader<FileUpload> {
+
+	/**
+	 * The directory the state of unfinished uploads is kept in
+	 */
+	private static final File STATE_DIRECTORY = new File(Util.getWorkingDirectory(), "resumable");
+
+	/**
+	 * The settings object used for this uploader
+	 */
+	private TusSettings settings;
+
+	/**
+	 * Construct this uploader with the loaded settings
+	 * @param settings
+	 * 			The settings object
+	 */
+	public TusUploader(TusSettings settings) {
+		this.settings = settings;
+	}
+
+	@Override
+	public String getName() {
+		return "Resumable Upload Server (tus)";
+	}
+
+	@Override
+	public String getEndpoint() {
+		return settings.url;
+	}
+
+	@Override
+	public String upload(FileUpload upload) throws Exception {
+		ResumableUpload resumable = new ResumableUpload(new URL(settings.url), upload.getFile(), STATE_DIRECTORY);
+		resumable.setChunkSize(settings.chunkSize * 1024 * 1024);
+		return resumable.execute();
+	}
+
+	@Override
+	public boolean validateSettings() throws UploaderConfigurationException {
+		if (settings.url == null || settings.url.isEmpty()) {
+			throw new UploaderConfigurationException("Missing the server URL!");
+		}
+		return true;
+	}
+
+	public static class TusSettings {
+		@Setting(name = "Server URL", description = "The URL uploads are created at")
+		public String url;
+
+		@Setting(name = "Chunk Size", description = "Size of each chunk in megabytes", optional = true, defaults = { "min=1", "max=1024", "default=4" })
+		public int chunkSize = 4;
+	}
+}
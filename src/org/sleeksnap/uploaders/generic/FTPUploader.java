@@ -20,17 +20,21 @@ package org.sleeksnap.uploaders.generic;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.sleeksnap.upload.FileUpload;
 import org.sleeksnap.upload.ImageUpload;
 import org.sleeksnap.upload.TextUpload;
+import org.sleeksnap.upload.UploadContext;
 import org.sleeksnap.uploaders.Uploader;
 import org.sleeksnap.uploaders.UploaderConfigurationException;
 import org.sleeksnap.uploaders.settings.Password;
 import org.sleeksnap.uploaders.settings.Setting;
 import org.sleeksnap.uploaders.settings.SettingsClass;
+import org.sleeksnap.util.FTPSessionPool;
 import org.sleeksnap.util.SimpleFTP;
-import org.sleeksnap.util.Utils.DateUtil;
+import org.sleeksnap.util.Utils.IdUtil;
 
 /**
  * A generic uploader for FTP servers Also serves as an example for the Settings
@@ -42,6 +46,22 @@ import org.sleeksnap.util.Utils.DateUtil;
 @SettingsClass(FTPUploader.FTPUploaderSettings.class)
 public class FTPUploader extends GenericUploader {
 	
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(FTPUploader.class.getName());
+
+	/**
+	 * The smallest file which is resumed after an interrupted transfer,
+	 * smaller files fail and are retried as a new upload
+	 */
+	private static final long RESUME_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * The number of times an interrupted transfer is resumed
+	 */
+	private static final int RESUME_RETRIES = 3;
+
 	private Uploader<?>[] uploaders = new Uploader<?>[] { new FTPImageUploader(), new FTPTextUploader(), new FTPFileUploader() };
 
 	/**
@@ -71,6 +91,94 @@ public class FTPUploader extends GenericUploader {
 	 */
 	public String ftpUpload(String fileName, InputStream input)
 			throws IOException, UploaderConfigurationException {
+		SimpleFTP ftp = connect();
+		boolean replied = false;
+		try {
+			boolean stored = ftp.stor(input, fileName);
+			replied = true;
+			if (!stored) {
+				throw new IOException("The FTP server did not store " + fileName + ": " + ftp.getResponse());
+			}
+		} finally {
+			release(ftp, replied);
+			input.close();
+		}
+		return getUrl(fileName);
+	}
+
+	/**
+	 * Upload a file to the FTP server, letting the kernel copy the file to the
+	 * data connection. If the transfer of a large file is interrupted, or the
+	 * server aborts it with a transient (4xx) reply, it is resumed from the
+	 * size the server has received
+	 * 
+	 * @param fileName
+	 *            The filename
+	 * @param file
+	 *            The file
+	 * @return The final URL
+	 * @throws IOException
+	 *             If an error occurred
+	 */
+	public String ftpUpload(String fileName, File file)
+			throws IOException, UploaderConfigurationException {
+		UploadContext context = UploadContext.current();
+		SimpleFTP ftp = connect();
+		long offset = 0;
+		for (int attempt = 0;; attempt++) {
+			boolean stored = false, replied = false;
+			String refused = null;
+			IOException error = null;
+			try {
+				stored = ftp.stor(file, fileName, offset);
+				replied = true;
+				if (!stored) {
+					refused = ftp.getResponse();
+				}
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				release(ftp, replied);
+			}
+			if (stored) {
+				break;
+			}
+			if (refused != null) {
+				error = new IOException("The FTP server did not store " + fileName + ": " + refused);
+				// Only a transient (4xx) failure is resumed, a permanent one
+				// would fail again
+				if (!refused.startsWith("4")) {
+					throw error;
+				}
+			}
+			if (attempt >= RESUME_RETRIES || file.length() < RESUME_THRESHOLD || context != null && context.isAborted()) {
+				throw error;
+			}
+			logger.log(Level.INFO, "Transfer of " + fileName + " was interrupted, resuming", error);
+			ftp = connect();
+			offset = Math.max(0, ftp.size(fileName));
+			if (offset >= file.length()) {
+				// Only the server's reply was lost
+				release(ftp, true);
+				break;
+			}
+			if (context != null) {
+				context.setTransferred(offset);
+			}
+		}
+		return getUrl(fileName);
+	}
+
+	/**
+	 * Take a logged in connection from the session pool, or connect and log in
+	 * to the FTP server, changing to the remote directory if the connection
+	 * isn't already in it
+	 * 
+	 * @return The connection
+	 * @throws IOException
+	 *             If an error occurred
+	 */
+	private SimpleFTP connect() throws IOException, UploaderConfigurationException {
 		if (settings.hostname == null || settings.hostname.isEmpty()
 				|| settings.username == null || settings.username.isEmpty()
 				|| settings.password == null // Password can be empty.
@@ -78,27 +186,66 @@ public class FTPUploader extends GenericUploader {
 			throw new UploaderConfigurationException(
 					"Missing hostname, username, password or baseurl!");
 		}
-		SimpleFTP ftp = new SimpleFTP();
-		
-		try {
-			ftp.connect(settings.hostname, settings.port, settings.username, settings.password.toString());
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new UploaderConfigurationException("Unable to connect to FTP server, please check your username and password.");
+		SimpleFTP ftp = FTPSessionPool.getInstance().acquire(getSessionKey());
+		if (ftp == null) {
+			ftp = new SimpleFTP();
+			try {
+				ftp.connect(settings.hostname, settings.port, settings.username, settings.password.toString());
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new UploaderConfigurationException("Unable to connect to FTP server, please check your username and password.");
+			}
+			// Images would be corrupted in ASCII mode, and resume offsets
+			// only make sense in binary mode
+			ftp.bin();
 		}
 		
-		if (settings.remotedir != null && !settings.remotedir.isEmpty()) {
+		if (settings.remotedir != null && !settings.remotedir.isEmpty() && !settings.remotedir.equals(ftp.getDirectory())) {
 			if(!ftp.cwd(settings.remotedir)) {
+				ftp.disconnect();
 				throw new UploaderConfigurationException("Unable to change FTP directory.");
 			}
 		}
 		
-		try {
-			ftp.stor(input, fileName);
-		} finally {
-			ftp.disconnect();
-			input.close();
+		return ftp;
+	}
+
+	/**
+	 * Return a connection to the session pool, or close it if the transfer
+	 * failed and the server's reply may still be waiting to be read
+	 * 
+	 * @param ftp
+	 *            The connection
+	 * @param replied
+	 *            Whether the server's reply to the transfer was read
+	 */
+	private void release(SimpleFTP ftp, boolean replied) {
+		if (replied) {
+			FTPSessionPool.getInstance().release(getSessionKey(), ftp);
+		} else {
+			FTPSessionPool.getInstance().discard(ftp);
 		}
+	}
+
+	/**
+	 * Get the key of the pooled connections for these settings. The password
+	 * is included so that changing it doesn't reuse a connection which logged
+	 * in with the old one
+	 * 
+	 * @return The key
+	 */
+	private String getSessionKey() {
+		return settings.username + ":" + settings.password.toString().hashCode() + "@" + settings.hostname + ":" + settings.port + "/" + (settings.remotedir != null ? settings.remotedir : "");
+	}
+
+	/**
+	 * Get the URL of an uploaded file
+	 * 
+	 * @param fileName
+	 *            The filename
+	 * @return The URL
+	 */
+	private String getUrl(String fileName) {
 		String baseUrl = settings.baseurl != null ? settings.baseurl : "%s";
 		if(!baseUrl.contains("%s")) {
 			baseUrl = baseUrl + "%s";
@@ -159,26 +306,25 @@ public class FTPUploader extends GenericUploader {
 
 		@Override
 		public String upload(FileUpload t) throws Exception {
-			return ftpUpload(generateFileName(t), t.asInputStream());
+			return ftpUpload(generateFileName(t), t.getFile());
 		}
 	}
 
 	/**
-	 * Generate a file name from a date object formatted for filenames, plus the
-	 * filename if applicable
+	 * Generate a unique file name, plus the filename if applicable
 	 * 
 	 * @param object
 	 *            The object to be uploaded
 	 * @return The filename
 	 */
 	public String generateFileName(Object object) {
-		String name = DateUtil.getCurrentDate();
+		String name = IdUtil.nextId();
 		if (object instanceof ImageUpload) {
 			name += ".png";
 		} else if (object instanceof TextUpload) {
 			name += ".txt";
 		} else if (object instanceof FileUpload) {
-			name += ((File) object).getName();
+			name += "-" + ((FileUpload) object).getFile().getName();
 		} else {
 			name += ".file";
 		}
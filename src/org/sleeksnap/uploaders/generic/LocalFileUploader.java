@@ -1,47 +1,29 @@
 package org.sleeksnap.uploaders.generic;
 
-import java.io.File;
-import java.io.FileWriter;
-
-import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.util.Collections;
 
+import org.sleeksnap.impl.LocalArchive;
 import org.sleeksnap.upload.ImageUpload;
 import org.sleeksnap.upload.TextUpload;
-import org.sleeksnap.upload.Upload;
 import org.sleeksnap.uploaders.Uploader;
-import org.sleeksnap.util.Util;
 import org.sleeksnap.util.Utils.FileUtils;
 
 /**
- * An uploader to save images and text to local files (Working Directory/local/<images/text>)
+ * An uploader to save images and text to the local archive (Working Directory/archive)
  * 
  * @author Nikki
  *
  */
 public class LocalFileUploader extends GenericUploader {
 	
-	/**
-	 * Local base directory
-	 */
-	private static final File LOCAL_BASE_DIR = new File(Util.getWorkingDirectory(), "local");
-	
-	/**
-	 * Local image directory
-	 */
-	private static final File LOCAL_IMAGE_DIR = new File(LOCAL_BASE_DIR, "images");
-	
-	/**
-	 * Local text directory
-	 */
-	private static final File LOCAL_TEXT_DIR = new File(LOCAL_BASE_DIR, "text");
-	
 	/**
 	 * List of sub uploaders
 	 */
 	private final Uploader<?>[] uploaders = new Uploader<?>[] { new ImageLocalFileUploader(), new TextLocalFileUploader() };
 
 	/**
-	 * An ImageUploader using ImageIO.write(image, format, file) to save an image
+	 * An ImageUploader which writes the encoded PNG data to a file
 	 * 
 	 * @author Nikki
 	 *
@@ -55,15 +37,12 @@ public class LocalFileUploader extends GenericUploader {
 
 		@Override
 		public String upload(ImageUpload upload) throws Exception {
-			checkDirectory(upload);
-			File file = new File(LOCAL_IMAGE_DIR, FileUtils.generateFileName(upload));
-			ImageIO.write(upload.getImage(), "png", file);
-			return file.toURI().toURL().toString();
+			return archive(upload.getData(), FileUtils.generateFileName(upload));
 		}
 	}
 
 	/**
-	 * A text file uploader using FileWriter to save text files to disk
+	 * A text file uploader saving UTF-8 text files to the archive
 	 * 
 	 * @author Nikki
 	 */
@@ -76,32 +55,28 @@ public class LocalFileUploader extends GenericUploader {
 
 		@Override
 		public String upload(TextUpload upload) throws Exception {
-			checkDirectory(upload);
-			File file = new File(LOCAL_TEXT_DIR, FileUtils.generateFileName(upload));
-			FileWriter writer = new FileWriter(file);
-			try {
-				writer.write(upload.getText());
-			} finally {
-				writer.close();
-			}
-			return file.toURI().toURL().toString();
+			return archive(upload.getText().getBytes(TextUpload.CHARSET), FileUtils.generateFileName(upload));
 		}
 	}
 	
 	/**
-	 * Check and create any directories needed
-	 * @param upload
-	 * 			The upload to check for the type
+	 * Store a file in the local archive, recording its own location as its URL
+	 * 
+	 * @param data
+	 *            The contents of the file
+	 * @param name
+	 *            The name of the file
+	 * @return The file URL
+	 * @throws IOException
+	 *             If the file could not be stored
 	 */
-	protected void checkDirectory(Upload upload) {
-		if(!LOCAL_BASE_DIR.exists()) {
-			LOCAL_BASE_DIR.mkdirs();
-		}
-		if(upload instanceof ImageUpload && !LOCAL_IMAGE_DIR.exists()) {
-			LOCAL_IMAGE_DIR.mkdirs();
-		} else if (upload instanceof TextUpload && !LOCAL_TEXT_DIR.exists()) {
-			LOCAL_TEXT_DIR.mkdirs();
-		}
+	protected String archive(byte[] data, String name) throws IOException {
+		LocalArchive archive = LocalArchive.getInstance();
+		// The location is known before storing, so the file and its URL are
+		// written as a single index record
+		String url = archive.getStoredFile(LocalArchive.hash(data), name).toURI().toURL().toString();
+		archive.sync(Collections.singletonList(archive.store(data, name, url)));
+		return url;
 	}
 
 	@Override
@@ -25,7 +25,7 @@ import org.sleeksnap.http.MultipartPostMethod.MultipartFile;
 import org.sleeksnap.upload.ImageUpload;
 import org.sleeksnap.uploaders.UploadException;
 import org.sleeksnap.uploaders.Uploader;
-import org.sleeksnap.util.Utils.DateUtil;
+import org.sleeksnap.util.Utils.FileUtils;
 
 /**
  * An uploader for http://imagebin.ca
@@ -40,8 +40,7 @@ public class ImagebinUploader extends Uploader<ImageUpload> {
 	@Override
 	public String upload(ImageUpload image) throws Exception {
 		MultipartPostMethod m = new MultipartPostMethod(UPLOAD_URL);
-		m.setParameter("file", new MultipartFile("Sleeksnap-" + DateUtil.getCurrentDate()
-				+ ".png", image.asInputStream()));
+		m.setParameter("file", new MultipartFile(FileUtils.generateFileName("png"), image.asInputStream()));
 		m.execute();
 		String resp = m.getResponse();
 		//Parsing it is not needed, but it's a good idea to make it easy to use.
@@ -65,4 +64,9 @@ public class ImagebinUploader extends Uploader<ImageUpload> {
 		return "Imagebin";
 	}
 
+	@Override
+	public String getEndpoint() {
+		return UPLOAD_URL;
+	}
+
 }
@@ -17,12 +17,13 @@
  */
 package org.sleeksnap.uploaders.images;
 
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.sleeksnap.http.HttpClient;
+import org.sleeksnap.http.HttpRequest;
 import org.sleeksnap.http.RequestData;
 import org.sleeksnap.impl.APICredentials;
 import org.sleeksnap.upload.ImageUpload;
@@ -33,8 +34,6 @@ import org.sleeksnap.uploaders.images.imgur.ImgurAuthenticationObject;
 import org.sleeksnap.uploaders.images.imgur.ImgurOAuthSettingType;
 import org.sleeksnap.uploaders.settings.Setting;
 import org.sleeksnap.uploaders.settings.SettingsClass;
-import org.sleeksnap.util.StreamUtils;
-import org.sleeksnap.util.Utils.ImageUtil;
 
 /**
  * An uploader to upload images to imgur.com The included API Key is for use by
@@ -50,6 +49,11 @@ public class ImgurUploader extends Uploader<ImageUpload> {
 	public static final String CLIENT_ID = APICredentials.getCredential(ImgurUploader.class, "clientId");
 	public static final String CLIENT_SECRET = APICredentials.getCredential(ImgurUploader.class, "clientSecret");
 
+	/**
+	 * The API URL
+	 */
+	private static final String API_URL = "https://api.imgur.com/3/image.json";
+
 	private ImgurAuthentication auth = new ImgurAuthentication(this);
 
 	/**
@@ -71,31 +75,33 @@ public class ImgurUploader extends Uploader<ImageUpload> {
 		return "Imgur";
 	}
 
+	@Override
+	public String getEndpoint() {
+		return API_URL;
+	}
+
 	@Override
 	public String upload(ImageUpload image) throws Exception {
 		// The API URL
-		URL url = new URL("https://api.imgur.com/3/image.json");
+		URL url = new URL(API_URL);
 
 		// Encode the image using our utility class
 		RequestData req = new RequestData();
-		req.put("image", ImageUtil.toBase64(image.getImage()));
+		req.put("image", image.toBase64());
 
 		// Open a connection to the API and add our Client ID
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		HttpClient client = HttpClient.getInstance();
+		HttpURLConnection connection = client.open(url);
 		connection.setRequestMethod("POST");
 		auth.addToConnection(connection);
-		connection.setDoOutput(true);
 
 		try {
 			/**
 			 * Write the image data and api key
 			 */
-			OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream());
-			writer.write(req.toURLEncodedString());
-			writer.flush();
-			writer.close();
+			HttpRequest.send(connection, req.toURLEncodedString().getBytes("UTF-8"));
 	
-			String res = StreamUtils.readContents(connection.getInputStream());
+			String res = client.read(connection);
 			
 			if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
 				try {
@@ -120,7 +126,7 @@ public class ImgurUploader extends Uploader<ImageUpload> {
 				throw new UploadException("Imgur API returned HTTP Response " + connection.getResponseCode());
 			}
 		} finally {
-			connection.disconnect();
+			client.release(connection);
 		}
 	}
 
@@ -41,6 +41,11 @@ public class ImmioUploader extends Uploader<ImageUpload> {
 		return "Imm.io";
 	}
 
+	@Override
+	public String getEndpoint() {
+		return API_URL;
+	}
+
 	@Override
 	public String upload(ImageUpload image) throws Exception {
 		MultipartPostMethod post = new MultipartPostMethod(API_URL);
@@ -30,7 +30,7 @@ import org.sleeksnap.uploaders.UploaderConfigurationException;
 import org.sleeksnap.uploaders.settings.Setting;
 import org.sleeksnap.uploaders.settings.SettingsClass;
 import org.sleeksnap.uploaders.settings.types.PasswordSettingType;
-import org.sleeksnap.util.Utils.DateUtil;
+import org.sleeksnap.util.Utils.FileUtils;
 
 /**
  * An uploader for puush.me
@@ -70,6 +70,11 @@ public class PuushUploader extends Uploader<ImageUpload> {
 		return "Puu.sh";
 	}
 
+	@Override
+	public String getEndpoint() {
+		return API_UPLOAD_URL;
+	}
+
 	@Override
 	public String upload(ImageUpload image) throws Exception {
 		if (settings.apikey == null || settings.apikey.isEmpty()) {
@@ -83,8 +88,7 @@ public class PuushUploader extends Uploader<ImageUpload> {
 		post.setParameter("z", "sleeksnap");
 
 		post.setParameter("f",
-				new MultipartFile("Sleeksnap-" + DateUtil.getCurrentDate()
-						+ ".png", image.asInputStream()));
+				new MultipartFile(FileUtils.generateFileName("png"), image.asInputStream()));
 
 		post.execute();
 
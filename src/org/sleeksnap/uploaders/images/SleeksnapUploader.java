@@ -23,7 +23,6 @@ import org.sleeksnap.http.HttpUtil;
 import org.sleeksnap.upload.ImageUpload;
 import org.sleeksnap.uploaders.UploadException;
 import org.sleeksnap.uploaders.Uploader;
-import org.sleeksnap.util.Utils.ImageUtil;
 
 /**
  * -- NOTE -- This currently does not work/is disabled due to hosting.
@@ -39,7 +38,7 @@ public class SleeksnapUploader extends Uploader<ImageUpload> {
 	@Override
 	public String upload(ImageUpload image) throws Exception {
 		String resp = HttpUtil.executePost("http://sleeksnap.com/upload", "image="
-				+ URLEncoder.encode(ImageUtil.toBase64(image.getImage()), "UTF-8"));
+				+ URLEncoder.encode(image.toBase64(), "UTF-8"));
 		if(!resp.substring(0, 4).equals("http")) {
 			throw new UploadException(resp);
 		}
@@ -1,7 +1,5 @@
 package org.sleeksnap.uploaders.images.imgur;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLConnection;
 import java.util.logging.Logger;
 
@@ -82,35 +80,27 @@ public class ImgurAuthentication {
 		
 		account.setAccessToken(null);
 
-		HttpURLConnection conn = (HttpURLConnection) new URL(TOKEN_URL).openConnection();
-		conn.setReadTimeout(10000);
+		RequestData data = new RequestData();
+		data.put("refresh_token", refreshToken);
+		data.put("client_id", ImgurUploader.CLIENT_ID);
+		data.put("client_secret", ImgurUploader.CLIENT_SECRET);
+		data.put("grant_type", "refresh_token");
+		
+		String response = HttpUtil.executePost(TOKEN_URL, data);
+		
 		try {
-			RequestData data = new RequestData();
-			data.put("refresh_token", refreshToken);
-			data.put("client_id", ImgurUploader.CLIENT_ID);
-			data.put("client_secret", ImgurUploader.CLIENT_SECRET);
-			data.put("grant_type", "refresh_token");
+			JSONObject obj = new JSONObject(response);
 			
-			String response = HttpUtil.executePost(TOKEN_URL, data);
+			// expires_in = seconds, update the counter
+			long expireTime = obj.getLong("expires_in");
 			
-			try {
-				JSONObject obj = new JSONObject(response);
-				
-				// expires_in = seconds, update the counter
-				long expireTime = obj.getLong("expires_in");
-				
-				account.setAccessToken(obj.getString("access_token"));
-				account.setExpirationTime(Util.currentTimeSeconds() + expireTime);
-				
-				// The object is the same as what we would have, so just keep it :D
-				parent.saveSettings(ScreenSnapper.getSettingsFile(ImgurUploader.class));
-			} catch(JSONException e) {
-				throw new UploaderConfigurationException("Unable to refresh access token from Imgur!");
-			}
-		} finally {
-			try {
-				conn.disconnect();
-			} catch (Exception ignore) {}
+			account.setAccessToken(obj.getString("access_token"));
+			account.setExpirationTime(Util.currentTimeSeconds() + expireTime);
+			
+			// The object is the same as what we would have, so just keep it :D
+			parent.saveSettings(ScreenSnapper.getSettingsFile(ImgurUploader.class));
+		} catch(JSONException e) {
+			throw new UploaderConfigurationException("Unable to refresh access token from Imgur!");
 		}
 	}
 }
@@ -49,4 +49,9 @@ public class Paste2Uploader extends Uploader<TextUpload> {
 	public String getName() {
 		return "Paste2";
 	}
+
+	@Override
+	public String getEndpoint() {
+		return APIURL;
+	}
 }
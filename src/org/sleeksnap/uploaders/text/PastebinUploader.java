@@ -79,6 +79,11 @@ public class PastebinUploader extends Uploader<TextUpload> {
 		return "Pastebin.com";
 	}
 
+	@Override
+	public String getEndpoint() {
+		return API_URL;
+	}
+
 	@Override
 	public String upload(TextUpload contents) throws Exception {
 		RequestData data = new RequestData();
@@ -58,6 +58,11 @@ public class PastieUploader extends Uploader<TextUpload> {
 		return "Pastie.org";
 	}
 
+	@Override
+	public String getEndpoint() {
+		return PASTIE_URL;
+	}
+
 	@Override
 	public String upload(TextUpload t) throws Exception {
 		RequestData data = new RequestData();
@@ -78,6 +78,11 @@ public class SlexyUploader extends Uploader<TextUpload> {
 	public String getName() {
 		return "Slexy.org";
 	}
+
+	@Override
+	public String getEndpoint() {
+		return APIURL;
+	}
 	
 	public static class SlexySettings {
 		//@Settings(required = {}, optional = { "author", "description", "visibility|combobox[Public,Private]", "line_numbers|checkbox[true]", "expiration|combobox[No expiration,5 minutes,15 minutes,30 minutes,1 hour,6 hours,12 hours,1 day,3 days,5 days,10 days,15 days,1 month,3 months,6 months]" })
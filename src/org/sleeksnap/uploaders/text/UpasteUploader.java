@@ -89,6 +89,11 @@ public class UpasteUploader extends Uploader<TextUpload> {
 	public String getName() {
 		return "uPaste.me";
 	}
+
+	@Override
+	public String getEndpoint() {
+		return APIURL;
+	}
 	
 	public static class UpasteSettings {
 		@Setting(name = "Private Token", description = "Upaste Private Token", optional = true)
@@ -17,15 +17,11 @@
  */
 package org.sleeksnap.uploaders.url;
 
-import java.io.OutputStreamWriter;
-import java.net.URL;
-import java.net.URLConnection;
-
 import org.json.JSONObject;
+import org.sleeksnap.http.HttpRequest;
 import org.sleeksnap.upload.URLUpload;
 import org.sleeksnap.uploaders.UploadException;
 import org.sleeksnap.uploaders.Uploader;
-import org.sleeksnap.util.StreamUtils;
 
 /**
  * A URL Shortener for http://goo.gl
@@ -45,6 +41,11 @@ public class GoogleShortener extends Uploader<URLUpload> {
 		return "Goo.gl";
 	}
 
+	@Override
+	public String getEndpoint() {
+		return PAGE_URL;
+	}
+
 	@Override
 	public String upload(URLUpload url) throws Exception {
 		//Sanity check, otherwise google's api returns a 400
@@ -52,21 +53,14 @@ public class GoogleShortener extends Uploader<URLUpload> {
 			return url.toString();
 		}
 		
-		URLConnection connection = new URL(PAGE_URL).openConnection();
-		connection.setDoOutput(true);
-		connection.setRequestProperty("Content-type", "application/json");
-		
 		JSONObject out = new JSONObject();
 		
 		out.put("longUrl", url.getURL());
 		
-		OutputStreamWriter writer = new OutputStreamWriter(
-				connection.getOutputStream());
-		writer.write(out.toString());
-		writer.flush();
-		writer.close();
-
-		String contents = StreamUtils.readContents(connection.getInputStream());
+		String contents = HttpRequest.post(PAGE_URL)
+				.header("Content-type", "application/json")
+				.body(out.toString())
+				.execute();
 		
 		JSONObject resp = new JSONObject(contents);
 		
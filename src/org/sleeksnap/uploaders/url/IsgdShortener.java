@@ -55,4 +55,9 @@ public class IsgdShortener extends Uploader<URLUpload> {
 	public String getName() {
 		return "is.gd";
 	}
+
+	@Override
+	public String getEndpoint() {
+		return PAGE_URL;
+	}
 }
@@ -50,6 +50,11 @@ public class TinyURLShortener extends Uploader<URLUpload> {
 		return "Tinyurl";
 	}
 
+	@Override
+	public String getEndpoint() {
+		return PAGE_URL;
+	}
+
 	@Override
 	public String upload(URLUpload url) throws Exception {
 		RequestData data = new RequestData();
@@ -0,0 +1,321 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.util;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps logged in FTP control connections open between uploads, so an upload
+ * to the same server can skip the connect, login and directory change. Idle
+ * connections are kept alive with NOOP and closed once they have been idle for
+ * <code>IDLE_TIMEOUT</code>.
+ * 
+ * @author Nikki
+ * 
+ */
+public class FTPSessionPool {
+
+	/**
+	 * The logger for this class
+	 */
+	private static final Logger logger = Logger.getLogger(FTPSessionPool.class.getName());
+
+	/**
+	 * The singleton instance
+	 */
+	private static final FTPSessionPool instance = new FTPSessionPool();
+
+	/**
+	 * The most idle connections kept per server
+	 */
+	public static final int MAX_IDLE_SESSIONS = 4;
+
+	/**
+	 * The interval between NOOPs on an idle connection, in milliseconds
+	 */
+	public static final long KEEPALIVE_INTERVAL = 30000;
+
+	/**
+	 * The time after which an idle connection is closed, in milliseconds
+	 */
+	public static final long IDLE_TIMEOUT = 300000;
+
+	/**
+	 * Get the shared pool
+	 * 
+	 * @return The pool
+	 */
+	public static FTPSessionPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The idle connections for each server, most recently used last
+	 */
+	private Map<String, Deque<Session>> idle = new HashMap<String, Deque<Session>>();
+
+	/**
+	 * The thread which sends the keepalive NOOPs, started with the first idle
+	 * connection
+	 */
+	private ScheduledExecutorService keepAlive;
+
+	/**
+	 * Whether the pool has been shut down, after which connections are closed
+	 * instead of kept
+	 */
+	private boolean shutdown;
+
+	/**
+	 * Construct the pool, use <code>getInstance</code>
+	 */
+	private FTPSessionPool() {
+	}
+
+	/**
+	 * Take an idle connection to a server, checking it with a NOOP first.
+	 * Connections which no longer respond are closed and skipped.
+	 * 
+	 * @param key
+	 *            The server key, identifying the host, user and directory
+	 * @return The connection, attached to the running upload, or null if
+	 *         there is no usable idle connection
+	 */
+	public SimpleFTP acquire(String key) {
+		while (true) {
+			Session session;
+			synchronized (idle) {
+				Deque<Session> sessions = idle.get(key);
+				if (sessions == null || sessions.isEmpty()) {
+					return null;
+				}
+				session = sessions.pollLast();
+			}
+			try {
+				session.ftp.attach();
+				if (session.ftp.noop()) {
+					return session.ftp;
+				}
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Discarding stale FTP connection to " + key, e);
+			}
+			discard(session.ftp);
+		}
+	}
+
+	/**
+	 * Return a connection to the pool once an upload has finished with it.
+	 * Connections which have been closed, or which aren't needed, are closed.
+	 * 
+	 * @param key
+	 *            The server key
+	 * @param ftp
+	 *            The connection
+	 */
+	public void release(String key, SimpleFTP ftp) {
+		if (!ftp.isConnected() || !offer(key, new Session(ftp), true)) {
+			discard(ftp);
+		}
+	}
+
+	/**
+	 * Add an idle connection to the pool, if it isn't full and hasn't been shut
+	 * down
+	 * 
+	 * @param key
+	 *            The server key
+	 * @param session
+	 *            The idle connection
+	 * @param newest
+	 *            True to add it as the most recently used connection, false to
+	 *            add it as the least
+	 * @return True if it was added, false if it should be closed
+	 */
+	private boolean offer(String key, Session session, boolean newest) {
+		synchronized (idle) {
+			if (shutdown) {
+				return false;
+			}
+			Deque<Session> sessions = idle.get(key);
+			if (sessions == null) {
+				idle.put(key, sessions = new ArrayDeque<Session>());
+			}
+			if (sessions.size() >= MAX_IDLE_SESSIONS) {
+				return false;
+			}
+			if (newest) {
+				sessions.addLast(session);
+			} else {
+				sessions.addFirst(session);
+			}
+			startKeepAlive();
+			return true;
+		}
+	}
+
+	/**
+	 * Close a connection, ignoring any errors
+	 * 
+	 * @param ftp
+	 *            The connection
+	 */
+	public void discard(SimpleFTP ftp) {
+		try {
+			ftp.disconnect();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	/**
+	 * Start sending keepalives, if it hasn't been started already
+	 */
+	private void startKeepAlive() {
+		if (keepAlive != null) {
+			return;
+		}
+		keepAlive = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FTP keepalive");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		keepAlive.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				keepAlive();
+			}
+		}, KEEPALIVE_INTERVAL, KEEPALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Send a NOOP on every connection which has been idle for the keepalive
+	 * interval, and close those which have been idle for too long or stopped
+	 * responding. The connections are taken out of the pool while this
+	 * happens, so they can't be used at the same time.
+	 */
+	private void keepAlive() {
+		long now = System.currentTimeMillis();
+		Map<String, List<Session>> due = new HashMap<String, List<Session>>();
+		synchronized (idle) {
+			for (Map.Entry<String, Deque<Session>> entry : idle.entrySet()) {
+				Iterator<Session> it = entry.getValue().iterator();
+				while (it.hasNext()) {
+					Session session = it.next();
+					if (now - session.lastPing >= KEEPALIVE_INTERVAL) {
+						it.remove();
+						List<Session> list = due.get(entry.getKey());
+						if (list == null) {
+							due.put(entry.getKey(), list = new ArrayList<Session>());
+						}
+						list.add(session);
+					}
+				}
+			}
+		}
+		for (Map.Entry<String, List<Session>> entry : due.entrySet()) {
+			for (Session session : entry.getValue()) {
+				boolean alive = false;
+				if (now - session.released < IDLE_TIMEOUT) {
+					try {
+						alive = session.ftp.noop();
+					} catch (IOException e) {
+						logger.log(Level.FINE, "FTP connection to " + entry.getKey() + " was lost", e);
+					}
+				}
+				session.lastPing = System.currentTimeMillis();
+				// Connections released while this one was out may have filled
+				// the pool, or it may have been shut down
+				if (!alive || !offer(entry.getKey(), session, false)) {
+					discard(session.ftp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close every idle connection and stop sending keepalives
+	 */
+	public void shutdown() {
+		List<Session> sessions = new ArrayList<Session>();
+		synchronized (idle) {
+			for (Deque<Session> deque : idle.values()) {
+				sessions.addAll(deque);
+			}
+			idle.clear();
+			shutdown = true;
+			if (keepAlive != null) {
+				keepAlive.shutdownNow();
+				keepAlive = null;
+			}
+		}
+		for (Session session : sessions) {
+			discard(session.ftp);
+		}
+	}
+
+	/**
+	 * An idle connection
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class Session {
+
+		/**
+		 * The connection
+		 */
+		private final SimpleFTP ftp;
+
+		/**
+		 * The time the connection was returned to the pool
+		 */
+		private final long released;
+
+		/**
+		 * The time the connection was last known to be alive
+		 */
+		private long lastPing;
+
+		/**
+		 * Construct a new idle connection
+		 * 
+		 * @param ftp
+		 *            The connection
+		 */
+		public Session(SimpleFTP ftp) {
+			this.ftp = ftp;
+			this.released = this.lastPing = System.currentTimeMillis();
+		}
+	}
+}
@@ -16,8 +16,6 @@ $Id: SimpleFTP.java,v 1.2 2004/05/29 19:27:37 pjm2 Exp $
 
 package org.sleeksnap.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -27,8 +25,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 import java.util.StringTokenizer;
 
+import org.sleeksnap.upload.UploadContext;
+
 /**
  * SimpleFTP is a simple package that implements a Java FTP client. With
  * SimpleFTP, you can connect to an FTP server and upload multiple files.
@@ -71,7 +76,7 @@ public class SimpleFTP {
 			throw new IOException(
 					"SimpleFTP is already connected. Disconnect first.");
 		}
-		socket = new Socket(host, port);
+		socket = UploadContext.connect(host, port);
 		reader = new BufferedReader(new InputStreamReader(
 				socket.getInputStream()));
 		writer = new BufferedWriter(new OutputStreamWriter(
@@ -112,10 +117,42 @@ public class SimpleFTP {
 		try {
 			sendLine("QUIT");
 		} finally {
+			if (socket != null) {
+				socket.close();
+			}
 			socket = null;
+			directory = null;
 		}
 	}
 
+	/**
+	 * Returns true if the control connection is still open.
+	 */
+	public synchronized boolean isConnected() {
+		return socket != null && !socket.isClosed();
+	}
+
+	/**
+	 * Hands the control connection to the running upload, so that it is
+	 * closed if the upload is aborted.
+	 */
+	public synchronized void attach() throws IOException {
+		if (socket == null) {
+			throw new IOException("SimpleFTP is not connected.");
+		}
+		UploadContext.adopt(socket);
+	}
+
+	/**
+	 * Sends a NOOP to keep the control connection alive. Returns true if the
+	 * server is still responding.
+	 */
+	public synchronized boolean noop() throws IOException {
+		sendLine("NOOP");
+		String response = readLine();
+		return response.startsWith("2");
+	}
+
 	/**
 	 * Returns the working directory of the FTP server it is connected to.
 	 */
@@ -139,7 +176,27 @@ public class SimpleFTP {
 	public synchronized boolean cwd(String dir) throws IOException {
 		sendLine("CWD " + dir);
 		String response = readLine();
-		return (response.startsWith("250 "));
+		if (response.startsWith("250 ")) {
+			directory = dir;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the last reply received from the server, such as the one which
+	 * refused a transfer, or null if none has been received.
+	 */
+	public synchronized String getResponse() {
+		return response;
+	}
+
+	/**
+	 * Returns the directory last changed to with cwd, or null if it hasn't
+	 * been changed since connecting.
+	 */
+	public synchronized String getDirectory() {
+		return directory;
 	}
 
 	/**
@@ -148,13 +205,62 @@ public class SimpleFTP {
 	 * firewall problems at the client end.
 	 */
 	public synchronized boolean stor(File file) throws IOException {
+		return stor(file, file.getName());
+	}
+
+	/**
+	 * Sends a file to be stored on the FTP server under the specified name.
+	 * The file is handed to the data socket with FileChannel.transferTo, which
+	 * lets the kernel copy it without passing it through user space.
+	 */
+	public synchronized boolean stor(File file, String filename)
+			throws IOException {
+		return stor(file, filename, 0);
+	}
+
+	/**
+	 * Sends the part of a file from the specified offset, continuing an
+	 * interrupted transfer. The server is asked to restart the transfer at the
+	 * offset with REST, falling back to appending with APPE if it doesn't
+	 * support it. Binary mode should be used, as the offset is meaningless in
+	 * ASCII mode.
+	 */
+	public synchronized boolean stor(File file, String filename, long offset)
+			throws IOException {
 		if (file.isDirectory()) {
 			throw new IOException("SimpleFTP cannot upload a directory.");
 		}
 
-		String filename = file.getName();
+		String command = "STOR " + filename;
+		if (offset > 0) {
+			sendLine("REST " + offset);
+			if (!readLine().startsWith("350 ")) {
+				command = "APPE " + filename;
+			}
+		}
+
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			Socket dataSocket = openDataConnection(command);
+			try {
+				SocketChannel target = dataSocket.getChannel();
+				long position = offset;
+				long size = channel.size();
+				while (position < size) {
+					long sent = channel.transferTo(position, Math.min(UploadContext.getChunkSize(TRANSFER_SIZE), size - position), target);
+					position += sent;
+					UploadContext.progress(sent);
+				}
+			} finally {
+				dataSocket.close();
+				UploadContext.sent();
+			}
+		} finally {
+			channel.close();
+		}
 
-		return stor(new FileInputStream(file), filename);
+		String response = readLine();
+		return response.startsWith("226 ");
 	}
 
 	/**
@@ -165,8 +271,111 @@ public class SimpleFTP {
 	public synchronized boolean stor(InputStream inputStream, String filename)
 			throws IOException {
 
-		BufferedInputStream input = new BufferedInputStream(inputStream);
+		ReadableByteChannel input = Channels.newChannel(inputStream);
+		try {
+			Socket dataSocket = openDataConnection("STOR " + filename);
+			try {
+				SocketChannel output = dataSocket.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocateDirect(UploadContext.getChunkSize(BUFFER_SIZE));
+				while (input.read(buffer) != -1) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						UploadContext.progress(output.write(buffer));
+					}
+					buffer.clear();
+				}
+			} finally {
+				dataSocket.close();
+				UploadContext.sent();
+			}
+		} finally {
+			input.close();
+		}
+
+		String response = readLine();
+		return response.startsWith("226 ");
+	}
 
+	/**
+	 * Returns the size of a file on the FTP server, or -1 if it doesn't exist
+	 * or the server doesn't support SIZE.
+	 */
+	public synchronized long size(String filename) throws IOException {
+		sendLine("SIZE " + filename);
+		String response = readLine();
+		if (response.startsWith("213 ")) {
+			try {
+				return Long.parseLong(response.substring(4).trim());
+			} catch (NumberFormatException e) {
+				// Fall through
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Enters passive mode and sends the transfer command, returning the data
+	 * socket to write the file to. Extended passive mode is tried first, as
+	 * it works over IPv6 and with servers behind a NAT, which often advertise
+	 * a private address in their PASV response.
+	 */
+	private Socket openDataConnection(String command) throws IOException {
+		Socket dataSocket = null;
+		if (epsv) {
+			dataSocket = openExtendedPassive();
+		}
+		if (dataSocket == null) {
+			dataSocket = openPassive();
+		}
+
+		sendLine(command);
+
+		String response = readLine();
+		if (!response.startsWith("150 ") && !response.startsWith("125 ")) {
+			dataSocket.close();
+			throw new IOException(
+					"SimpleFTP was not allowed to send the file: " + response);
+		}
+		return dataSocket;
+	}
+
+	/**
+	 * Enters extended passive mode, returning the data socket or null if the
+	 * server doesn't support it.
+	 */
+	private Socket openExtendedPassive() throws IOException {
+		sendLine("EPSV");
+		String response = readLine();
+		if (!response.startsWith("229 ")) {
+			epsv = false;
+			return null;
+		}
+
+		// The port is given as (|||port|)
+		int opening = response.indexOf('(');
+		int closing = response.indexOf(')', opening + 1);
+		if (opening < 0 || closing < opening + 5) {
+			throw new IOException(
+					"SimpleFTP received bad data link information: "
+							+ response);
+		}
+		String dataLink = response.substring(opening + 1, closing);
+		char delimiter = dataLink.charAt(0);
+		int port;
+		try {
+			port = Integer.parseInt(dataLink.substring(3, dataLink.indexOf(delimiter, 3)));
+		} catch (Exception e) {
+			throw new IOException(
+					"SimpleFTP received bad data link information: "
+							+ response);
+		}
+		return UploadContext.connect(socket.getInetAddress().getHostAddress(), port);
+	}
+
+	/**
+	 * Enters passive mode, returning the data socket.
+	 */
+	private Socket openPassive() throws IOException {
 		sendLine("PASV");
 		String response = readLine();
 		if (!response.startsWith("227 ")) {
@@ -193,29 +402,7 @@ public class SimpleFTP {
 			}
 		}
 
-		sendLine("STOR " + filename);
-
-		Socket dataSocket = new Socket(ip, port);
-
-		response = readLine();
-		if (!response.startsWith("150 ")) {
-			throw new IOException(
-					"SimpleFTP was not allowed to send the file: " + response);
-		}
-
-		BufferedOutputStream output = new BufferedOutputStream(
-				dataSocket.getOutputStream());
-		byte[] buffer = new byte[4096];
-		int bytesRead = 0;
-		while ((bytesRead = input.read(buffer)) != -1) {
-			output.write(buffer, 0, bytesRead);
-		}
-		output.flush();
-		output.close();
-		input.close();
-
-		response = readLine();
-		return response.startsWith("226 ");
+		return UploadContext.connect(ip, port);
 	}
 
 	/**
@@ -259,16 +446,35 @@ public class SimpleFTP {
 
 	private String readLine() throws IOException {
 		String line = reader.readLine();
+		if (line == null) {
+			socket.close();
+			socket = null;
+			throw new IOException("SimpleFTP connection was closed by the server.");
+		}
 		if (DEBUG) {
 			System.out.println("< " + line);
 		}
+		response = line;
 		return line;
 	}
 
 	private Socket socket = null;
 	private BufferedReader reader = null;
 	private BufferedWriter writer = null;
+	private String directory = null;
+	private String response = null;
+	private boolean epsv = true;
 
 	private static boolean DEBUG = false;
 
+	/**
+	 * The most bytes handed to transferTo at once, so progress is reported
+	 */
+	private static final int TRANSFER_SIZE = 1024 * 1024;
+
+	/**
+	 * The size of the buffer streams are copied to the data socket through
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 }
\ No newline at end of file
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 
 /**
  * Basic file/stream utilities
@@ -42,9 +43,25 @@ public class StreamUtils {
 	 */
 	public static String readContents(InputStream inputStream)
 			throws IOException {
+		return readContents(inputStream, Charset.defaultCharset());
+	}
+
+	/**
+	 * Read all of the data from an InputStream into a string
+	 * @param inputStream
+	 * 			The stream to read from
+	 * @param charset
+	 * 			The charset of the data
+	 * @return
+	 * 			The data, lines separated by \n
+	 * @throws IOException
+	 * 			If a problem occurred while reading
+	 */
+	public static String readContents(InputStream inputStream, Charset charset)
+			throws IOException {
 		StringBuilder contents = new StringBuilder();
 		BufferedReader reader = new BufferedReader(new InputStreamReader(
-				inputStream));
+				inputStream, charset));
 		try {
 			String line;
 			while ((line = reader.readLine()) != null) {
@@ -18,12 +18,14 @@
 package org.sleeksnap.util;
 
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.GraphicsConfiguration;
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
 import java.awt.HeadlessException;
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.Toolkit;
 import java.awt.Transparency;
 import java.awt.datatransfer.Clipboard;
@@ -42,7 +44,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.FileNameMap;
 import java.net.URLConnection;
+import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -243,7 +247,7 @@ public class Utils {
 		/**
 		 * Get the clipboard contents
 		 * @return
-		 * 			Either an Image, String or File
+		 * 			Either an Image, String or a List of Files
 		 * @throws ClipboardException
 		 * 			If an error occurred
 		 */
@@ -277,11 +281,10 @@ public class Utils {
 					.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
 				// Files are on the clipboard
 				try {
-					// We only will use the first file...
 					List<File> list = (List<File>) contents
 							.getTransferData(DataFlavor.javaFileListFlavor);
 					if (list.size() > 0) {
-						return list.get(0);
+						return list;
 					}
 				} catch (Exception e) {
 					throw new ClipboardException(e);
@@ -349,6 +352,38 @@ public class Utils {
 			return contents.toString();
 		}
 		
+		/**
+		 * Expand a list of files and directories into the files they contain
+		 * 
+		 * @param files
+		 *            The files and directories
+		 * @param recursive
+		 *            Whether to include the contents of sub directories
+		 * @return The files, directories are replaced by their contents
+		 */
+		public static List<File> listFiles(List<File> files, boolean recursive) {
+			List<File> list = new LinkedList<File>();
+			for (File file : files) {
+				if (file.isDirectory()) {
+					File[] children = file.listFiles();
+					if (children == null) {
+						continue;
+					}
+					Arrays.sort(children);
+					for (File child : children) {
+						if (child.isFile()) {
+							list.add(child);
+						} else if (recursive && child.isDirectory()) {
+							list.addAll(listFiles(Collections.singletonList(child), true));
+						}
+					}
+				} else if (file.isFile()) {
+					list.add(file);
+				}
+			}
+			return list;
+		}
+
 		/**
 		 * Get the jar running from as a File object
 		 * 
@@ -385,20 +420,20 @@ public class Utils {
 		 * @return The generated filename
 		 */
 		public static String generateFileName(String extension) {
-			return Application.NAME + "-" + DateUtil.getCurrentDate()
+			return Application.NAME + "-" + IdUtil.nextId()
 					+ (extension.equals("") ? "" : "." + extension);
 		}
 
 		/**
-		 * Generate a file name from a date object formatted for filenames, plus the
-		 * filename if applicable
+		 * Generate a unique file name for an upload, or the name of the file
+		 * for file uploads
 		 * 
 		 * @param upload
 		 *            The object to be uploaded
 		 * @return The filename
 		 */
 		public static String generateFileName(Upload upload) {
-			String name = DateUtil.getCurrentDate();
+			String name = IdUtil.nextId();
 			if (upload instanceof ImageUpload) {
 				name += ".png";
 			} else if (upload instanceof TextUpload) {
@@ -485,9 +520,33 @@ public class Utils {
 		 *             If an error occurred
 		 */
 		public static String toBase64(BufferedImage image) throws IOException {
+			return toBase64(toByteArray(image));
+		}
+
+		/**
+		 * Convert already encoded image data into a Base64 string
+		 * 
+		 * @param data
+		 *            The encoded image data
+		 * @return The base64 encoded image data
+		 */
+		public static String toBase64(byte[] data) {
+			return DatatypeConverter.printBase64Binary(data);
+		}
+
+		/**
+		 * Encode an image as a PNG
+		 * 
+		 * @param image
+		 *            The image
+		 * @return The PNG data
+		 * @throws IOException
+		 *             If an error occurred
+		 */
+		public static byte[] toByteArray(BufferedImage image) throws IOException {
 			ByteArrayOutputStream output = new ByteArrayOutputStream();
 			ImageIO.write(image, "PNG", output);
-			return DatatypeConverter.printBase64Binary(output.toByteArray());
+			return output.toByteArray();
 		}
 
 		/**
@@ -562,9 +621,41 @@ public class Utils {
 		 */
 		public static InputStream toInputStream(BufferedImage image)
 				throws IOException {
-			ByteArrayOutputStream output = new ByteArrayOutputStream();
-			ImageIO.write(image, "PNG", output);
-			return new ByteArrayInputStream(output.toByteArray());
+			return new ByteArrayInputStream(toByteArray(image));
+		}
+
+		/**
+		 * Scale an image down to fit within a square, halving it with bilinear
+		 * filtering until the last step. This is much faster than a single
+		 * smooth scale, and looks better than a single bilinear one.
+		 * 
+		 * @param image
+		 *            The image
+		 * @param size
+		 *            The width and height of the square
+		 * @return The scaled image, without transparency
+		 */
+		public static BufferedImage createThumbnail(BufferedImage image, int size) {
+			double scale = Math.min(1, (double) size / Math.max(image.getWidth(), image.getHeight()));
+			int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+			int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+			BufferedImage current = image;
+			int width = image.getWidth();
+			int height = image.getHeight();
+			do {
+				width = Math.max(targetWidth, width / 2);
+				height = Math.max(targetHeight, height / 2);
+				BufferedImage step = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g = step.createGraphics();
+				try {
+					g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+					g.drawImage(current, 0, 0, width, height, null);
+				} finally {
+					g.dispose();
+				}
+				current = step;
+			} while (width != targetWidth || height != targetHeight);
+			return current;
 		}
 	}
 
@@ -647,18 +738,108 @@ public class Utils {
 	public static class DateUtil {
 
 		/**
-		 * The date format
+		 * The date format, one per thread since SimpleDateFormat isn't thread
+		 * safe
 		 */
-		private static SimpleDateFormat dateFormat = new SimpleDateFormat(
-				"MM-dd-yyyy_HH-mm-ss");
+		private static ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+			@Override
+			protected SimpleDateFormat initialValue() {
+				return new SimpleDateFormat("MM-dd-yyyy_HH-mm-ss");
+			}
+		};
 
 		/**
-		 * Gets a filename friendly date
+		 * Gets a filename friendly date. This only has second resolution, use
+		 * IdUtil for unique names
 		 * 
 		 * @return The formatted date
 		 */
 		public static String getCurrentDate() {
-			return dateFormat.format(new Date());
+			return dateFormat.get().format(new Date());
+		}
+	}
+
+	/**
+	 * Generates unique, time sortable identifiers in the style of a ULID: 26
+	 * characters of Crockford's base32, the first 10 holding the time in
+	 * milliseconds and the rest 80 random bits. Identifiers generated in the
+	 * same millisecond increment the random part, so they stay unique and in
+	 * order however fast they are generated.
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	public static class IdUtil {
+
+		/**
+		 * The base32 alphabet, without I, L, O and U
+		 */
+		private static final char[] ENCODING = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+		/**
+		 * The length of an identifier
+		 */
+		private static final int LENGTH = 26;
+
+		/**
+		 * The random source
+		 */
+		private static final SecureRandom random = new SecureRandom();
+
+		/**
+		 * The time of the last identifier
+		 */
+		private static long lastTime = -1;
+
+		/**
+		 * The top 16 random bits of the last identifier
+		 */
+		private static long randomHigh;
+
+		/**
+		 * The low 64 random bits of the last identifier
+		 */
+		private static long randomLow;
+
+		/**
+		 * Generate a new identifier
+		 * 
+		 * @return The identifier
+		 */
+		public static synchronized String nextId() {
+			// If the clock goes backwards the last time is kept, so the
+			// identifiers stay in order
+			long time = System.currentTimeMillis();
+			if (time > lastTime) {
+				lastTime = time;
+				randomHigh = random.nextInt() & 0xFFFF;
+				randomLow = random.nextLong();
+			} else if (++randomLow == 0 && ++randomHigh > 0xFFFF) {
+				// The random part overflowed, borrow the next millisecond
+				lastTime++;
+				randomHigh = random.nextInt() & 0xFFFF;
+				randomLow = random.nextLong();
+			}
+			return encode((lastTime << 16) | randomHigh, randomLow);
+		}
+
+		/**
+		 * Encode a 128 bit value as base32, most significant bits first
+		 * 
+		 * @param high
+		 *            The high 64 bits
+		 * @param low
+		 *            The low 64 bits
+		 * @return The encoded value
+		 */
+		private static String encode(long high, long low) {
+			char[] chars = new char[LENGTH];
+			for (int i = LENGTH - 1; i >= 0; i--) {
+				chars[i] = ENCODING[(int) (low & 0x1F)];
+				low = (low >>> 5) | (high << 59);
+				high >>>= 5;
+			}
+			return new String(chars);
 		}
 	}
 }
@@ -0,0 +1,411 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs ResumableUpload against a small tus server, checking that an upload
+ * resumes from the offset the server reports and recovers from an offset
+ * conflict.
+ * 
+ * The server is the http server bundled with the JDK, the embedded server in
+ * lib can't parse HEAD requests, which the protocol needs.
+ * 
+ * Run with "ant test", it exits with a non-zero status if a check fails.
+ * 
+ * @author Nikki
+ * 
+ */
+public class ResumableUploadTest {
+
+	/**
+	 * The size of each chunk sent by the uploads
+	 */
+	private static final int CHUNK_SIZE = 1000;
+
+	/**
+	 * The size of the uploaded file
+	 */
+	private static final int FILE_SIZE = 5500;
+
+	/**
+	 * The server
+	 */
+	private TusServer server;
+
+	/**
+	 * The directory holding the file and the upload state
+	 */
+	private File directory;
+
+	/**
+	 * The file being uploaded
+	 */
+	private File file;
+
+	/**
+	 * The contents of the file
+	 */
+	private byte[] contents;
+
+	/**
+	 * Start the server and create the file to upload
+	 * 
+	 * @throws IOException
+	 *             If the server could not be started
+	 */
+	private void setUp() throws IOException {
+		server = new TusServer();
+		directory = File.createTempFile("tus", "");
+		directory.delete();
+		directory.mkdirs();
+
+		contents = new byte[FILE_SIZE];
+		new Random(1).nextBytes(contents);
+		file = new File(directory, "upload.bin");
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(contents);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Stop the server and delete the files
+	 */
+	private void tearDown() {
+		server.stop();
+		File[] files = getStateDirectory().listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		getStateDirectory().delete();
+		file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Create an upload of the file
+	 * 
+	 * @return The upload
+	 * @throws IOException
+	 *             If the endpoint is invalid
+	 */
+	private ResumableUpload createUpload() throws IOException {
+		ResumableUpload upload = new ResumableUpload(server.getEndpoint(), file, getStateDirectory());
+		upload.setChunkSize(CHUNK_SIZE);
+		return upload;
+	}
+
+	/**
+	 * Get the directory the upload state is kept in
+	 * 
+	 * @return The directory
+	 */
+	private File getStateDirectory() {
+		return new File(directory, "state");
+	}
+
+	/**
+	 * An upload which failed after its first chunk is resumed by a new
+	 * instance from the offset the server reports, without creating it again
+	 * 
+	 * @throws Exception
+	 *             If the upload failed
+	 */
+	public void testResumeFromOffset() throws Exception {
+		server.failAfter = CHUNK_SIZE;
+		try {
+			createUpload().execute();
+			fail("The upload should have failed");
+		} catch (IOException e) {
+			// Expected, the server refused every chunk after the first
+		}
+		check(server.received.size() == CHUNK_SIZE, "The server should have the first chunk");
+		check(getStateDirectory().list().length == 1, "The state should be kept after a failure");
+
+		server.failAfter = -1;
+		server.offsets.clear();
+		String location = createUpload().execute();
+
+		check(server.creates == 1, "The upload should only be created once, was created " + server.creates + " times");
+		check(server.offsets.get(0) == CHUNK_SIZE, "The upload should resume from " + CHUNK_SIZE + ", resumed from " + server.offsets.get(0));
+		check(location.equals(server.getLocation().toString()), "The location should be returned, got " + location);
+		check(Arrays.equals(server.received.toByteArray(), contents), "The server should have the whole file");
+		check(getStateDirectory().list().length == 0, "The state should be deleted once the upload completes");
+	}
+
+	/**
+	 * A chunk sent at an offset the server doesn't agree with is refused with
+	 * 409 Conflict, and the upload continues from the offset the server
+	 * reports
+	 * 
+	 * @throws Exception
+	 *             If the upload failed
+	 */
+	public void testOffsetConflict() throws Exception {
+		server.loseAt = 2 * CHUNK_SIZE;
+		createUpload().execute();
+
+		check(server.conflicts == 1, "One chunk should have been refused, " + server.conflicts + " were");
+		check(server.offsets.contains(3L * CHUNK_SIZE - TusServer.LOST_BYTES), "The upload should continue from the offset the server reports");
+		check(Arrays.equals(server.received.toByteArray(), contents), "The server should have the whole file");
+	}
+
+	/**
+	 * Fail unless a condition holds
+	 * 
+	 * @param condition
+	 *            The condition
+	 * @param message
+	 *            The message to fail with
+	 */
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			fail(message);
+		}
+	}
+
+	/**
+	 * Fail the running test
+	 * 
+	 * @param message
+	 *            The message to fail with
+	 */
+	private static void fail(String message) {
+		throw new AssertionError(message);
+	}
+
+	/**
+	 * Run every test, each against a new server
+	 * 
+	 * @param args
+	 *            The command line arguments, unused
+	 */
+	public static void main(String[] args) {
+		String[] tests = { "testResumeFromOffset", "testOffsetConflict" };
+		int failures = 0;
+		for (String name : tests) {
+			ResumableUploadTest test = new ResumableUploadTest();
+			try {
+				test.setUp();
+				try {
+					ResumableUploadTest.class.getMethod(name).invoke(test);
+					System.out.println("PASS " + name);
+				} finally {
+					test.tearDown();
+				}
+			} catch (Throwable t) {
+				if (t.getCause() != null) {
+					t = t.getCause();
+				}
+				System.out.println("FAIL " + name + ": " + t);
+				t.printStackTrace();
+				failures++;
+			}
+		}
+		System.out.println(tests.length - failures + " of " + tests.length + " tests passed");
+		System.exit(failures > 0 ? 1 : 0);
+	}
+
+	/**
+	 * A tus server which keeps a single upload in memory, and can be made to
+	 * refuse chunks or lose the end of one
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class TusServer implements HttpHandler {
+
+		/**
+		 * The number of bytes lost from the chunk at the loss offset
+		 */
+		public static final int LOST_BYTES = 100;
+
+		/**
+		 * The path uploads are created at
+		 */
+		private static final String ENDPOINT = "/files";
+
+		/**
+		 * The path of the upload
+		 */
+		private static final String LOCATION = ENDPOINT + "/1";
+
+		/**
+		 * The server
+		 */
+		private HttpServer server;
+
+		/**
+		 * The data received
+		 */
+		private ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+		/**
+		 * The offset of each chunk sent
+		 */
+		private List<Long> offsets = new ArrayList<Long>();
+
+		/**
+		 * The number of times the upload was created
+		 */
+		private int creates;
+
+		/**
+		 * The number of chunks refused with 409 Conflict
+		 */
+		private int conflicts;
+
+		/**
+		 * The offset after which every chunk is refused, or -1
+		 */
+		private volatile long failAfter = -1;
+
+		/**
+		 * The offset of the chunk whose end is lost, or -1
+		 */
+		private volatile long loseAt = -1;
+
+		/**
+		 * Start a server on a free port
+		 * 
+		 * @throws IOException
+		 *             If the server could not be started
+		 */
+		public TusServer() throws IOException {
+			server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			server.createContext(ENDPOINT, this);
+			server.start();
+		}
+
+		@Override
+		public synchronized void handle(HttpExchange exchange) throws IOException {
+			try {
+				String path = exchange.getRequestURI().getPath();
+				String method = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+				if (method == null) {
+					method = exchange.getRequestMethod();
+				}
+				byte[] data = read(exchange.getRequestBody());
+
+				if (path.equals(ENDPOINT) && method.equals("POST")) {
+					creates++;
+					received.reset();
+					exchange.getResponseHeaders().add("Location", LOCATION);
+					exchange.sendResponseHeaders(201, -1);
+				} else if (!path.equals(LOCATION)) {
+					exchange.sendResponseHeaders(404, -1);
+				} else if (method.equals("HEAD")) {
+					exchange.getResponseHeaders().add("Upload-Offset", Long.toString(received.size()));
+					exchange.sendResponseHeaders(200, -1);
+				} else if (!method.equals("PATCH")) {
+					exchange.sendResponseHeaders(405, -1);
+				} else {
+					long offset = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+					offsets.add(offset);
+					if (offset != received.size()) {
+						conflicts++;
+						exchange.sendResponseHeaders(409, -1);
+					} else if (failAfter >= 0 && offset >= failAfter) {
+						exchange.sendResponseHeaders(500, -1);
+					} else {
+						received.write(data);
+						long acknowledged = received.size();
+						if (offset == loseAt) {
+							// Acknowledge the whole chunk, but keep only part of it
+							byte[] kept = received.toByteArray();
+							received.reset();
+							received.write(kept, 0, kept.length - LOST_BYTES);
+						}
+						exchange.getResponseHeaders().add("Upload-Offset", Long.toString(acknowledged));
+						exchange.sendResponseHeaders(204, -1);
+					}
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+
+		/**
+		 * Read a request body
+		 * 
+		 * @param input
+		 *            The body
+		 * @return The data
+		 * @throws IOException
+		 *             If the body could not be read
+		 */
+		private static byte[] read(InputStream input) throws IOException {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+			return output.toByteArray();
+		}
+
+		/**
+		 * Get the endpoint uploads are created at
+		 * 
+		 * @return The endpoint
+		 * @throws IOException
+		 *             If the URL is invalid
+		 */
+		public URL getEndpoint() throws IOException {
+			return new URL("http://localhost:" + server.getAddress().getPort() + ENDPOINT);
+		}
+
+		/**
+		 * Get the location of the upload
+		 * 
+		 * @return The location
+		 * @throws IOException
+		 *             If the URL is invalid
+		 */
+		public URL getLocation() throws IOException {
+			return new URL("http://localhost:" + server.getAddress().getPort() + LOCATION);
+		}
+
+		/**
+		 * Stop the server
+		 */
+		public void stop() {
+			server.stop(0);
+		}
+	}
+}
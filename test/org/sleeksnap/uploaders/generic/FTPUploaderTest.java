@@ -0,0 +1,612 @@
+/**
+ * Sleeksnap, the open source cross-platform screenshot uploader
+ * Copyright (C) 2012 Nikki <nikki@nikkii.us>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sleeksnap.uploaders.generic;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.sleeksnap.uploaders.generic.FTPUploader.FTPUploaderSettings;
+import org.sleeksnap.uploaders.settings.Password;
+
+/**
+ * Runs FTPUploader against a small FTP server, checking that an interrupted
+ * or transiently refused transfer is resumed with REST or APPE, that a
+ * permanent refusal fails, that passive mode is used when extended passive
+ * mode isn't supported and that a pooled connection the server has closed is
+ * replaced.
+ * 
+ * Run with "ant test", it exits with a non-zero status if a check fails.
+ * 
+ * @author Nikki
+ * 
+ */
+public class FTPUploaderTest {
+
+	/**
+	 * The size of the uploaded file, large enough to be resumed
+	 */
+	private static final int FILE_SIZE = 1536 * 1024;
+
+	/**
+	 * The number of bytes the server receives before a transfer fails
+	 */
+	private static final int FAIL_AT = 512 * 1024;
+
+	/**
+	 * The name the file is stored as
+	 */
+	private static final String FILE_NAME = "upload.bin";
+
+	/**
+	 * The base URL of the uploaded files
+	 */
+	private static final String BASE_URL = "http://example.com/";
+
+	/**
+	 * The server
+	 */
+	private FtpServer server;
+
+	/**
+	 * The file being uploaded
+	 */
+	private File file;
+
+	/**
+	 * The contents of the file
+	 */
+	private byte[] contents;
+
+	/**
+	 * The uploader
+	 */
+	private FTPUploader uploader;
+
+	/**
+	 * Start the server and create the file to upload
+	 * 
+	 * @throws IOException
+	 *             If the server could not be started
+	 */
+	private void setUp() throws IOException {
+		server = new FtpServer();
+
+		contents = new byte[FILE_SIZE];
+		new Random(1).nextBytes(contents);
+		file = File.createTempFile("ftp", ".bin");
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(contents);
+		} finally {
+			output.close();
+		}
+
+		FTPUploaderSettings settings = new FTPUploaderSettings();
+		settings.hostname = "127.0.0.1";
+		settings.port = server.getPort();
+		settings.username = "user";
+		settings.password = new Password("pass");
+		settings.baseurl = BASE_URL;
+		uploader = new FTPUploader(settings);
+	}
+
+	/**
+	 * Stop the server and delete the file
+	 */
+	private void tearDown() {
+		server.stop();
+		file.delete();
+	}
+
+	/**
+	 * A transfer cut off with the connection is resumed with REST from the
+	 * size the server has received
+	 * 
+	 * @throws Exception
+	 *             If the upload failed
+	 */
+	public void testResumeAfterDisconnect() throws Exception {
+		server.dropAt = FAIL_AT;
+		String url = uploader.ftpUpload(FILE_NAME, file);
+
+		check(url.equals(BASE_URL + FILE_NAME), "The URL should be returned, got " + url);
+		check(server.transfers == 2, "The transfer should be resumed once, was sent " + server.transfers + " times");
+		check(server.rests.equals(Arrays.asList((long) FAIL_AT)), "The transfer should restart at " + FAIL_AT + ", restarted at " + server.rests);
+		check(Arrays.equals(server.getFile(FILE_NAME), contents), "The server should have the whole file");
+	}
+
+	/**
+	 * A transfer the server aborts with a transient reply is resumed, rather
+	 * than reported as a complete upload of part of the file
+	 * 
+	 * @throws Exception
+	 *             If the upload failed
+	 */
+	public void testResumeAfterTransientReply() throws Exception {
+		server.abortAt = FAIL_AT;
+		server.abortReply = "426 Connection closed; transfer aborted.";
+		uploader.ftpUpload(FILE_NAME, file);
+
+		check(server.transfers == 2, "The transfer should be resumed once, was sent " + server.transfers + " times");
+		check(server.rests.equals(Arrays.asList((long) FAIL_AT)), "The transfer should restart at " + FAIL_AT + ", restarted at " + server.rests);
+		check(Arrays.equals(server.getFile(FILE_NAME), contents), "The server should have the whole file");
+	}
+
+	/**
+	 * A transfer the server refuses with a permanent reply fails without
+	 * being resumed
+	 * 
+	 * @throws Exception
+	 *             If the server could not be reached
+	 */
+	public void testPermanentReplyFails() throws Exception {
+		server.abortAt = FAIL_AT;
+		server.abortReply = "552 Exceeded storage allocation.";
+		try {
+			uploader.ftpUpload(FILE_NAME, file);
+			fail("The upload should have failed");
+		} catch (IOException e) {
+			check(e.getMessage().contains("552"), "The failure should give the server's reply, was " + e.getMessage());
+		}
+		check(server.transfers == 1, "The transfer should not be resumed, was sent " + server.transfers + " times");
+	}
+
+	/**
+	 * A server which doesn't support REST is sent the rest of the file with
+	 * APPE
+	 * 
+	 * @throws Exception
+	 *             If the upload failed
+	 */
+	public void testAppendWithoutRest() throws Exception {
+		server.dropAt = FAIL_AT;
+		server.restSupported = false;
+		uploader.ftpUpload(FILE_NAME, file);
+
+		check(server.commands.contains("APPE"), "The rest of the file should be appended, commands were " + server.commands);
+		check(Arrays.equals(server.getFile(FILE_NAME), contents), "The server should have the whole file");
+	}
+
+	/**
+	 * Passive mode is used if the server doesn't support extended passive
+	 * mode, which isn't tried again on the same connection
+	 * 
+	 * @throws Exception
+	 *             If the upload failed
+	 */
+	public void testPassiveWithoutExtendedPassive() throws Exception {
+		server.epsvSupported = false;
+		uploader.ftpUpload(FILE_NAME, file);
+		uploader.ftpUpload(FILE_NAME, file);
+
+		check(Collections.frequency(server.commands, "EPSV") == 1, "Extended passive mode should be tried once, commands were " + server.commands);
+		check(Collections.frequency(server.commands, "PASV") == 2, "Passive mode should be used for each transfer, commands were " + server.commands);
+		check(Arrays.equals(server.getFile(FILE_NAME), contents), "The server should have the whole file");
+	}
+
+	/**
+	 * A pooled connection is reused, and replaced once the server has closed
+	 * it
+	 * 
+	 * @throws Exception
+	 *             If the upload failed
+	 */
+	public void testStaleSessionReplaced() throws Exception {
+		uploader.ftpUpload(FILE_NAME, file);
+		uploader.ftpUpload(FILE_NAME, file);
+		check(server.logins == 1, "The connection should be reused, logged in " + server.logins + " times");
+
+		server.disconnectAll();
+		uploader.ftpUpload(FILE_NAME, file);
+		check(server.logins == 2, "The closed connection should be replaced, logged in " + server.logins + " times");
+		check(Arrays.equals(server.getFile(FILE_NAME), contents), "The server should have the whole file");
+	}
+
+	/**
+	 * Fail unless a condition holds
+	 * 
+	 * @param condition
+	 *            The condition
+	 * @param message
+	 *            The message to fail with
+	 */
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			fail(message);
+		}
+	}
+
+	/**
+	 * Fail the running test
+	 * 
+	 * @param message
+	 *            The message to fail with
+	 */
+	private static void fail(String message) {
+		throw new AssertionError(message);
+	}
+
+	/**
+	 * Run every test, each against a new server
+	 * 
+	 * @param args
+	 *            The command line arguments, unused
+	 */
+	public static void main(String[] args) {
+		String[] tests = { "testResumeAfterDisconnect", "testResumeAfterTransientReply", "testPermanentReplyFails", "testAppendWithoutRest", "testPassiveWithoutExtendedPassive", "testStaleSessionReplaced" };
+		int failures = 0;
+		for (String name : tests) {
+			FTPUploaderTest test = new FTPUploaderTest();
+			try {
+				test.setUp();
+				try {
+					FTPUploaderTest.class.getMethod(name).invoke(test);
+					System.out.println("PASS " + name);
+				} finally {
+					test.tearDown();
+				}
+			} catch (Throwable t) {
+				if (t.getCause() != null) {
+					t = t.getCause();
+				}
+				System.out.println("FAIL " + name + ": " + t);
+				t.printStackTrace();
+				failures++;
+			}
+		}
+		System.out.println(tests.length - failures + " of " + tests.length + " tests passed");
+		// The session pool's keep alive thread would keep the VM running
+		System.exit(failures > 0 ? 1 : 0);
+	}
+
+	/**
+	 * An FTP server which keeps the stored files in memory, and can be made to
+	 * cut off or abort the first transfer and to leave out REST and EPSV
+	 * 
+	 * @author Nikki
+	 * 
+	 */
+	private static class FtpServer implements Runnable {
+
+		/**
+		 * The socket connections are accepted on
+		 */
+		private ServerSocket serverSocket;
+
+		/**
+		 * The open control connections
+		 */
+		private List<Socket> connections = Collections.synchronizedList(new ArrayList<Socket>());
+
+		/**
+		 * The stored files
+		 */
+		private List<String> names = new ArrayList<String>();
+
+		/**
+		 * The contents of the stored files, in the order of their names
+		 */
+		private List<ByteArrayOutputStream> files = new ArrayList<ByteArrayOutputStream>();
+
+		/**
+		 * The commands received, without their arguments
+		 */
+		private List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+
+		/**
+		 * The offsets transfers were restarted at
+		 */
+		private List<Long> rests = Collections.synchronizedList(new ArrayList<Long>());
+
+		/**
+		 * The number of logins
+		 */
+		private volatile int logins;
+
+		/**
+		 * The number of transfers started
+		 */
+		private volatile int transfers;
+
+		/**
+		 * Whether REST is supported
+		 */
+		private volatile boolean restSupported = true;
+
+		/**
+		 * Whether EPSV is supported
+		 */
+		private volatile boolean epsvSupported = true;
+
+		/**
+		 * The number of bytes after which the first transfer is cut off by
+		 * closing the connections, or -1
+		 */
+		private volatile long dropAt = -1;
+
+		/**
+		 * The number of bytes after which the rest of the first transfer is
+		 * thrown away and answered with the abort reply, or -1
+		 */
+		private volatile long abortAt = -1;
+
+		/**
+		 * The reply to an aborted transfer
+		 */
+		private volatile String abortReply;
+
+		/**
+		 * Start a server on a free port
+		 * 
+		 * @throws IOException
+		 *             If the server could not be started
+		 */
+		public FtpServer() throws IOException {
+			serverSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+			Thread thread = new Thread(this, "FTP server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					connections.add(socket);
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								serve(socket);
+							} catch (IOException e) {
+								// The connection was closed
+							} finally {
+								close(socket);
+							}
+						}
+					}, "FTP connection");
+					thread.setDaemon(true);
+					thread.start();
+				}
+			} catch (IOException e) {
+				// The server was stopped
+			}
+		}
+
+		/**
+		 * Answer the commands sent on a control connection
+		 * 
+		 * @param socket
+		 *            The control connection
+		 * @throws IOException
+		 *             If the connection was closed
+		 */
+		private void serve(Socket socket) throws IOException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+			reply(writer, "220 Ready");
+			ServerSocket data = null;
+			long rest = -1;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				String command = space < 0 ? line : line.substring(0, space);
+				String argument = space < 0 ? "" : line.substring(space + 1);
+				commands.add(command);
+				if (command.equals("USER")) {
+					reply(writer, "331 Password required");
+				} else if (command.equals("PASS")) {
+					logins++;
+					reply(writer, "230 Logged in");
+				} else if (command.equals("TYPE") || command.equals("NOOP")) {
+					reply(writer, "200 OK");
+				} else if (command.equals("SIZE")) {
+					byte[] file = getFile(argument);
+					reply(writer, file != null ? "213 " + file.length : "550 No such file");
+				} else if (command.equals("REST") && restSupported) {
+					rest = Long.parseLong(argument);
+					rests.add(rest);
+					reply(writer, "350 Restarting at " + rest);
+				} else if (command.equals("EPSV") && epsvSupported) {
+					data = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+					reply(writer, "229 Entering Extended Passive Mode (|||" + data.getLocalPort() + "|)");
+				} else if (command.equals("PASV")) {
+					data = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+					int port = data.getLocalPort();
+					reply(writer, "227 Entering Passive Mode (127,0,0,1," + port / 256 + "," + port % 256 + ")");
+				} else if ((command.equals("STOR") || command.equals("APPE")) && data != null) {
+					reply(writer, "150 Opening data connection");
+					Socket dataSocket = data.accept();
+					data.close();
+					data = null;
+					boolean first = transfers++ == 0;
+					ByteArrayOutputStream file = open(argument, command.equals("APPE") ? -1 : Math.max(0, rest));
+					rest = -1;
+					try {
+						if (!receive(dataSocket.getInputStream(), file, first)) {
+							socket.close();
+							return;
+						}
+					} finally {
+						dataSocket.close();
+					}
+					reply(writer, first && abortAt >= 0 ? abortReply : "226 Transfer complete");
+				} else if (command.equals("QUIT")) {
+					reply(writer, "221 Bye");
+					return;
+				} else {
+					reply(writer, "502 Command not implemented");
+				}
+			}
+		}
+
+		/**
+		 * Receive the data of a transfer
+		 * 
+		 * @param input
+		 *            The data connection
+		 * @param file
+		 *            The file to write it to
+		 * @param first
+		 *            Whether this is the first transfer, which may be cut off
+		 *            or aborted
+		 * @return False if the transfer was cut off
+		 * @throws IOException
+		 *             If the data could not be read
+		 */
+		private boolean receive(InputStream input, ByteArrayOutputStream file, boolean first) throws IOException {
+			long limit = !first ? -1 : dropAt >= 0 ? dropAt : abortAt;
+			byte[] buffer = new byte[8192];
+			long received = 0;
+			int read;
+			while ((read = input.read(buffer, 0, limit >= 0 ? (int) Math.min(buffer.length, limit - received) : buffer.length)) > 0) {
+				synchronized (this) {
+					file.write(buffer, 0, read);
+				}
+				received += read;
+				if (received == limit) {
+					if (dropAt >= 0) {
+						return false;
+					}
+					// Throw away the rest, as a server refusing it would
+					while (input.read(buffer) != -1) {
+						// Discarded
+					}
+					break;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Open a stored file to write to
+		 * 
+		 * @param name
+		 *            The file name
+		 * @param offset
+		 *            The offset to write from, or -1 to append
+		 * @return The file
+		 */
+		private synchronized ByteArrayOutputStream open(String name, long offset) {
+			int index = names.indexOf(name);
+			if (index < 0) {
+				names.add(name);
+				files.add(new ByteArrayOutputStream());
+				index = names.size() - 1;
+			}
+			ByteArrayOutputStream file = files.get(index);
+			if (offset >= 0) {
+				byte[] kept = Arrays.copyOf(file.toByteArray(), (int) Math.min(offset, file.size()));
+				file.reset();
+				file.write(kept, 0, kept.length);
+			}
+			return file;
+		}
+
+		/**
+		 * Get the contents of a stored file
+		 * 
+		 * @param name
+		 *            The file name
+		 * @return The contents, or null if no such file is stored
+		 */
+		public synchronized byte[] getFile(String name) {
+			int index = names.indexOf(name);
+			return index < 0 ? null : files.get(index).toByteArray();
+		}
+
+		/**
+		 * Send a reply on a control connection
+		 * 
+		 * @param writer
+		 *            The connection's writer
+		 * @param reply
+		 *            The reply
+		 * @throws IOException
+		 *             If the connection was closed
+		 */
+		private static void reply(Writer writer, String reply) throws IOException {
+			writer.write(reply + "\r\n");
+			writer.flush();
+		}
+
+		/**
+		 * Close a socket, ignoring any errors
+		 * 
+		 * @param socket
+		 *            The socket
+		 */
+		private static void close(Socket socket) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+
+		/**
+		 * Close every control connection, as a server dropping idle clients
+		 * would
+		 */
+		public void disconnectAll() {
+			synchronized (connections) {
+				for (Socket socket : connections) {
+					close(socket);
+				}
+				connections.clear();
+			}
+		}
+
+		/**
+		 * Get the port the server listens on
+		 * 
+		 * @return The port
+		 */
+		public int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		/**
+		 * Stop the server
+		 */
+		public void stop() {
+			disconnectAll();
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+}